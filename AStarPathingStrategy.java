@@ -0,0 +1,346 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+AStarPathingStrategy: A* over the 4-connected grid, routing around anything the
+mover cannot enter
+
+All search state lives in primitive arrays sized to the grid and reused from one
+search to the next; a per-search stamp marks which entries are current, so
+nothing is cleared or allocated per call.  Each mover keeps the path it was
+given and follows it until something that will not move off takes one of the
+cells still ahead of it, or the destination moves.  A failed search is
+remembered until the world's occupancy changes, so a boxed-in mover does not
+search again every tick.  Another mover in the way is waited on for
+MAX_BLOCKED_TICKS, then routed around as if it were a wall, so two movers
+meeting head-on, or one parked by its target, do not hold each other up forever.
+ */
+
+final class AStarPathingStrategy
+   implements PathingStrategy
+{
+   private static final int[] STEP_X = {-1, 1, 0, 0};
+   private static final int[] STEP_Y = {0, 0, -1, 1};
+   private static final int MAX_BLOCKED_TICKS = 3;
+
+   private final int numRows;
+   private final int numCols;
+
+   private final int[] cost;
+   private final int[] parent;
+   private final int[] seen;
+   private final int[] closed;
+   private long[] open;
+   private int openSize;
+   private int searchId;
+
+   // paths die with their entities
+   private final Map<Entity, Path> paths;
+
+   public AStarPathingStrategy(int numRows, int numCols)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+
+      if ((long)numRows * numCols > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException("world too large");
+      }
+      int cells = numRows * numCols;
+      this.cost = new int[cells];
+      this.parent = new int[cells];
+      this.seen = new int[cells];
+      this.closed = new int[cells];
+      this.open = new long[Math.max(cells, 16)];
+      this.openSize = 0;
+      this.searchId = 0;
+      this.paths = new WeakHashMap<>();
+   }
+
+   public Point nextPosition(WorldModel world, Entity mover, Point destPos)
+   {
+      Point pos = mover.getPosition();
+      if (pos.adjacent(destPos))
+      {
+         return pos;
+      }
+
+      int goal = cellOf(destPos);
+      Path path = paths.get(mover);
+      if (path == null)
+      {
+         path = new Path();
+         paths.put(mover, path);
+      }
+
+      if (!path.followable(this, world, mover, goal))
+      {
+         if (path.goal == goal && path.failedAt == world.getOccupancyVersion())
+         {
+            return pos;
+         }
+         if (!search(world, mover, destPos, path, -1))
+         {
+            path.failedAt = world.getOccupancyVersion();
+            return pos;
+         }
+      }
+
+      // another mover in the way will usually move on, so wait a few ticks
+      // before replanning around it
+      int step = path.cells[path.next];
+      if (!canEnter(mover, world.getOccupancyCell(step % numCols, step / numCols)))
+      {
+         if (++path.blocked < MAX_BLOCKED_TICKS)
+         {
+            return pos;
+         }
+         if (!search(world, mover, destPos, path, step))
+         {
+            path.failedAt = world.getOccupancyVersion();
+            return pos;
+         }
+         step = path.cells[path.next];
+         if (!canEnter(mover, world.getOccupancyCell(step % numCols, step / numCols)))
+         {
+            return pos;
+         }
+      }
+      path.next++;
+      path.blocked = 0;
+      return new Point(step % numCols, step / numCols);
+   }
+
+   /*
+      Fills path with the cheapest route from the mover to any cell next to
+      destPos that does not go through avoid (-1 for none); false if there
+      is none.
+   */
+   private boolean search(WorldModel world, Entity mover, Point destPos, Path path, int avoid)
+   {
+      nextSearch();
+
+      Point pos = mover.getPosition();
+      int start = cellOf(pos);
+      cost[start] = 0;
+      parent[start] = -1;
+      seen[start] = searchId;
+      openSize = 0;
+      push(heuristic(start, destPos), start);
+
+      while (openSize > 0)
+      {
+         int cell = (int)pop();
+         if (closed[cell] == searchId)
+         {
+            continue;
+         }
+         closed[cell] = searchId;
+
+         if (heuristic(cell, destPos) == 0)
+         {
+            path.load(this, cell, cellOf(destPos));
+            return true;
+         }
+
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int x = cell % numCols + STEP_X[dir];
+            int y = cell / numCols + STEP_Y[dir];
+            if (x < 0 || x >= numCols || y < 0 || y >= numRows)
+            {
+               continue;
+            }
+
+            int next = y * numCols + x;
+            if (closed[next] == searchId || next == avoid ||
+                    !canPass(mover, world.getOccupancyCell(x, y)))
+            {
+               continue;
+            }
+
+            int through = cost[cell] + 1;
+            if (seen[next] != searchId || through < cost[next])
+            {
+               seen[next] = searchId;
+               cost[next] = through;
+               parent[next] = cell;
+               push(through + heuristic(next, destPos), next);
+            }
+         }
+      }
+
+      path.clear(cellOf(destPos));
+      return false;
+   }
+
+   private void nextSearch()
+   {
+      if (searchId == Integer.MAX_VALUE)
+      {
+         Arrays.fill(seen, 0);
+         Arrays.fill(closed, 0);
+         searchId = 0;
+      }
+      searchId++;
+   }
+
+   /*
+      Whether mover may step onto occupant's cell right now.
+   */
+   private static boolean canEnter(Entity mover, Entity occupant)
+   {
+      return occupant == null ||
+              (mover.getKind() == EntityKind.CRAB && occupant.getKind() == EntityKind.FISH);
+   }
+
+   /*
+      Whether a path may go through occupant's cell; other movers count as
+      open since they will have moved on by the time this one gets there.
+   */
+   private static boolean canPass(Entity mover, Entity occupant)
+   {
+      if (occupant == null || canEnter(mover, occupant))
+      {
+         return true;
+      }
+      switch (occupant.getKind())
+      {
+         case OCTO_FULL:
+         case OCTO_NOT_FULL:
+         case CRAB:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /*
+      Manhattan distance to the nearest cell adjacent to destPos.
+   */
+   private int heuristic(int cell, Point destPos)
+   {
+      int distance = Math.abs(cell % numCols - destPos.x) + Math.abs(cell / numCols - destPos.y);
+      return Math.max(distance - 1, 0);
+   }
+
+   private int cellOf(Point pos)
+   {
+      return pos.y * numCols + pos.x;
+   }
+
+   // binary min-heap of (f << 32 | cell), so ties break on cell index
+
+   private void push(int f, int cell)
+   {
+      if (openSize == open.length)
+      {
+         open = Arrays.copyOf(open, open.length * 2);
+      }
+
+      long key = (long)f << Integer.SIZE | cell;
+      int pos = openSize++;
+      while (pos > 0)
+      {
+         int up = (pos - 1) >>> 1;
+         if (open[up] <= key)
+         {
+            break;
+         }
+         open[pos] = open[up];
+         pos = up;
+      }
+      open[pos] = key;
+   }
+
+   private long pop()
+   {
+      long top = open[0];
+      long key = open[--openSize];
+      int pos = 0;
+      while (true)
+      {
+         int child = pos * 2 + 1;
+         if (child >= openSize)
+         {
+            break;
+         }
+         if (child + 1 < openSize && open[child + 1] < open[child])
+         {
+            child++;
+         }
+         if (key <= open[child])
+         {
+            break;
+         }
+         open[pos] = open[child];
+         pos = child;
+      }
+      open[pos] = key;
+      return top;
+   }
+
+   /*
+      One mover's cached route: cells[0] is where it started and cells[next]
+      is the next cell to step to.
+   */
+   private static final class Path
+   {
+      int[] cells = new int[16];
+      int length;
+      int next;
+      int goal = -1;
+      long failedAt = -1;
+      int blocked;
+
+      boolean followable(AStarPathingStrategy strategy, WorldModel world, Entity mover, int goal)
+      {
+         if (this.goal != goal || this.next == 0 || this.next >= this.length ||
+                 this.cells[this.next - 1] != strategy.cellOf(mover.getPosition()))
+         {
+            return false;
+         }
+
+         for (int i = this.next; i < this.length; i++)
+         {
+            int cell = this.cells[i];
+            if (!canPass(mover, world.getOccupancyCell(cell % strategy.numCols, cell / strategy.numCols)))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      void load(AStarPathingStrategy strategy, int end, int goal)
+      {
+         int steps = strategy.cost[end] + 1;
+         if (this.cells.length < steps)
+         {
+            this.cells = new int[Math.max(steps, this.cells.length * 2)];
+         }
+
+         int cell = end;
+         for (int i = steps - 1; i >= 0; i--)
+         {
+            this.cells[i] = cell;
+            cell = strategy.parent[cell];
+         }
+
+         this.length = steps;
+         this.next = 1;
+         this.goal = goal;
+         this.failedAt = -1;
+         this.blocked = 0;
+      }
+
+      void clear(int goal)
+      {
+         this.length = 0;
+         this.next = 0;
+         this.goal = goal;
+         this.blocked = 0;
+      }
+   }
+}
@@ -34,6 +34,16 @@ final class Action
       this.repeatCount = repeatCount;
    }
 
+   public ActionKind getKind()
+   {
+      return kind;
+   }
+
+   public int getRepeatCount()
+   {
+      return repeatCount;
+   }
+
    public void executeAction(EventScheduler scheduler)
    {
       switch (kind)
@@ -54,12 +64,30 @@ final class Action
 
       if (repeatCount != 1)
       {
-         scheduler.scheduleEvent(entity, createAnimationAction(entity, Math.max(repeatCount - 1, 0)),
-                 entity.getAnimationPeriod());
+         // only the event that just fired refers to this action, so count
+         // down in place rather than allocating the next one
+         this.repeatCount = Math.max(repeatCount - 1, 0);
+         scheduler.scheduleEvent(entity, this, entity.getAnimationPeriod());
       }
    }
 
    private void executeActivityAction(EventScheduler scheduler)
+   {
+      SchedulerMetrics metrics = scheduler.getMetrics();
+      if (metrics == null)
+      {
+         runActivity(scheduler);
+         return;
+      }
+
+      // read the kind first: a transform can swap it out from under us
+      EntityKind kind = this.entity.getKind();
+      long start = System.nanoTime();
+      runActivity(scheduler);
+      metrics.recordActivity(kind, System.nanoTime() - start);
+   }
+
+   private void runActivity(EventScheduler scheduler)
    {
       switch (this.entity.getKind())
       {
@@ -114,7 +142,7 @@ final class Action
       Entity crab = entity.createCrab(entity.getId() + CRAB_ID_SUFFIX,
               pos, entity.getActionPeriod() / CRAB_PERIOD_SCALE,
               CRAB_ANIMATION_MIN +
-                      entity.rand.nextInt(CRAB_ANIMATION_MAX - CRAB_ANIMATION_MIN),
+                      scheduler.getRandom().nextInt(CRAB_ANIMATION_MAX - CRAB_ANIMATION_MIN),
               imageStore.getImageList(CRAB_KEY));
 
       world.addEntity(crab);
@@ -167,7 +195,7 @@ final class Action
       if (openPt.isPresent())
       {
          Entity fish = entity.createFish(FISH_ID_PREFIX + entity.getId(),
-                 openPt.get(), FISH_CORRUPT_MIN + entity.rand.nextInt(FISH_CORRUPT_MAX - FISH_CORRUPT_MIN),
+                 openPt.get(), FISH_CORRUPT_MIN + scheduler.getRandom().nextInt(FISH_CORRUPT_MAX - FISH_CORRUPT_MIN),
                  imageStore.getImageList(FISH_KEY));
          world.addEntity(fish);
          scheduler.scheduleActions(fish, world, imageStore);
@@ -211,13 +239,34 @@ final class Action
       scheduler.unscheduleAllEvents(entity);
       entity.removeEntity(world,entity);
    }
+   /*
+      Endless animations (repeatCount 0) carry no per-event state, so each
+      entity keeps one and hands it out every time.
+   */
    public static Action createAnimationAction(Entity entity, int repeatCount)
    {
-      return new Action(ActionKind.ANIMATION, entity, null, null, repeatCount);
+      if (repeatCount != 0)
+      {
+         return new Action(ActionKind.ANIMATION, entity, null, null, repeatCount);
+      }
+
+      Action action = entity.getAnimationAction();
+      if (action == null)
+      {
+         action = new Action(ActionKind.ANIMATION, entity, null, null, 0);
+         entity.setAnimationAction(action);
+      }
+      return action;
    }
 
    public static Action createActivityAction(Entity entity, WorldModel world, ImageStore imageStore)
    {
-      return new Action(ActionKind.ACTIVITY, entity, world, imageStore, 0);
+      Action action = entity.getActivityAction();
+      if (action == null || action.world != world || action.imageStore != imageStore)
+      {
+         action = new Action(ActionKind.ACTIVITY, entity, world, imageStore, 0);
+         entity.setActivityAction(action);
+      }
+      return action;
    }
 }
\ No newline at end of file
@@ -0,0 +1,291 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+ArrayHeapEventQueue: a 4-ary heap laid out as parallel primitive arrays
+
+Sifting only touches the times, sequences and handles arrays, so comparisons never
+chase a pointer into an Event.  A handle indexes the Event table and the
+position table, which lets remove find an event's heap slot without a scan.
+Times are compared as full longs, so ordering holds across the whole range.
+ */
+
+final class ArrayHeapEventQueue
+   implements EventQueue
+{
+   private static final int ARITY = 4;
+   private static final int INITIAL_CAPACITY = 64;
+
+   // heap order
+   private long[] times;
+   private long[] sequences;
+   private int[] handles;
+
+   // by handle
+   private Event[] events;
+   private int[] positions;
+
+   private int[] freeHandles;
+   private int freeCount;
+   private int handleCount;
+   private int size;
+
+   public ArrayHeapEventQueue()
+   {
+      this.times = new long[INITIAL_CAPACITY];
+      this.sequences = new long[INITIAL_CAPACITY];
+      this.handles = new int[INITIAL_CAPACITY];
+      this.events = new Event[INITIAL_CAPACITY];
+      this.positions = new int[INITIAL_CAPACITY];
+      this.freeHandles = new int[INITIAL_CAPACITY];
+      this.freeCount = 0;
+      this.handleCount = 0;
+      this.size = 0;
+   }
+
+   public void add(Event event)
+   {
+      if (this.size == this.times.length)
+      {
+         grow();
+      }
+
+      int handle = allocateHandle();
+      this.events[handle] = event;
+      event.queueHandle = handle;
+
+      int pos = this.size++;
+      this.times[pos] = event.time;
+      this.sequences[pos] = event.sequence;
+      this.handles[pos] = handle;
+      this.positions[handle] = pos;
+      siftUp(pos);
+   }
+
+   /*
+      Appends the whole batch and heapifies bottom up once, O(n) rather
+      than a sift per event.
+   */
+   public void addAll(List<Event> events)
+   {
+      for (Event event : events)
+      {
+         if (this.size == this.times.length)
+         {
+            grow();
+         }
+
+         int handle = allocateHandle();
+         this.events[handle] = event;
+         event.queueHandle = handle;
+
+         int pos = this.size++;
+         this.times[pos] = event.time;
+         this.sequences[pos] = event.sequence;
+         this.handles[pos] = handle;
+         this.positions[handle] = pos;
+      }
+      heapify();
+   }
+
+   public Event peek()
+   {
+      return this.size == 0 ? null : this.events[this.handles[0]];
+   }
+
+   public Event poll()
+   {
+      if (this.size == 0)
+      {
+         return null;
+      }
+
+      int handle = this.handles[0];
+      Event next = this.events[handle];
+      removeAt(0);
+      releaseHandle(handle);
+      return next;
+   }
+
+   public boolean remove(Event event)
+   {
+      int handle = event.queueHandle;
+      if (handle < 0 || handle >= this.handleCount || this.events[handle] != event)
+      {
+         return false;
+      }
+
+      removeAt(this.positions[handle]);
+      releaseHandle(handle);
+      return true;
+   }
+
+   /*
+      Compacts the survivors to the front and re-heapifies bottom up,
+      which is O(n) however many events go.
+   */
+   public int removeIf(Predicate<Event> filter)
+   {
+      int kept = 0;
+      for (int pos = 0; pos < this.size; pos++)
+      {
+         int handle = this.handles[pos];
+         if (filter.test(this.events[handle]))
+         {
+            releaseHandle(handle);
+         }
+         else
+         {
+            this.times[kept] = this.times[pos];
+            this.sequences[kept] = this.sequences[pos];
+            this.handles[kept] = handle;
+            this.positions[handle] = kept;
+            kept++;
+         }
+      }
+
+      int dropped = this.size - kept;
+      this.size = kept;
+      heapify();
+      return dropped;
+   }
+
+   public void forEach(Consumer<Event> action)
+   {
+      for (int pos = 0; pos < this.size; pos++)
+      {
+         action.accept(this.events[this.handles[pos]]);
+      }
+   }
+
+   public boolean isEmpty()
+   {
+      return this.size == 0;
+   }
+
+   public int size()
+   {
+      return this.size;
+   }
+
+   private void removeAt(int pos)
+   {
+      int last = --this.size;
+      if (pos != last)
+      {
+         int moved = this.handles[last];
+         move(last, pos);
+         siftDown(pos);
+         if (this.handles[pos] == moved)
+         {
+            siftUp(pos);
+         }
+      }
+   }
+
+   private void heapify()
+   {
+      for (int pos = (this.size - 2) / ARITY; pos >= 0; pos--)
+      {
+         siftDown(pos);
+      }
+   }
+
+   private void siftUp(int pos)
+   {
+      long time = this.times[pos];
+      long sequence = this.sequences[pos];
+      int handle = this.handles[pos];
+
+      while (pos > 0)
+      {
+         int parent = (pos - 1) / ARITY;
+         if (!less(time, sequence, this.times[parent], this.sequences[parent]))
+         {
+            break;
+         }
+         move(parent, pos);
+         pos = parent;
+      }
+      place(pos, time, sequence, handle);
+   }
+
+   private void siftDown(int pos)
+   {
+      long time = this.times[pos];
+      long sequence = this.sequences[pos];
+      int handle = this.handles[pos];
+
+      while (true)
+      {
+         int first = pos * ARITY + 1;
+         if (first >= this.size)
+         {
+            break;
+         }
+
+         int best = first;
+         int end = Math.min(first + ARITY, this.size);
+         for (int child = first + 1; child < end; child++)
+         {
+            if (less(this.times[child], this.sequences[child],
+                    this.times[best], this.sequences[best]))
+            {
+               best = child;
+            }
+         }
+
+         if (!less(this.times[best], this.sequences[best], time, sequence))
+         {
+            break;
+         }
+         move(best, pos);
+         pos = best;
+      }
+      place(pos, time, sequence, handle);
+   }
+
+   private void move(int from, int to)
+   {
+      place(to, this.times[from], this.sequences[from], this.handles[from]);
+   }
+
+   private void place(int pos, long time, long sequence, int handle)
+   {
+      this.times[pos] = time;
+      this.sequences[pos] = sequence;
+      this.handles[pos] = handle;
+      this.positions[handle] = pos;
+   }
+
+   private static boolean less(long time, long sequence,
+                               long otherTime, long otherSequence)
+   {
+      return time < otherTime || (time == otherTime && sequence < otherSequence);
+   }
+
+   private int allocateHandle()
+   {
+      return this.freeCount > 0 ? this.freeHandles[--this.freeCount] : this.handleCount++;
+   }
+
+   private void releaseHandle(int handle)
+   {
+      this.events[handle].queueHandle = -1;
+      this.events[handle] = null;
+      this.freeHandles[this.freeCount++] = handle;
+   }
+
+   private void grow()
+   {
+      int capacity = this.times.length * 2;
+      this.times = Arrays.copyOf(this.times, capacity);
+      this.sequences = Arrays.copyOf(this.sequences, capacity);
+      this.handles = Arrays.copyOf(this.handles, capacity);
+      this.events = Arrays.copyOf(this.events, capacity);
+      this.positions = Arrays.copyOf(this.positions, capacity);
+      this.freeHandles = Arrays.copyOf(this.freeHandles, capacity);
+   }
+}
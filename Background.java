@@ -15,6 +15,11 @@ final class Background
       this.images = images;
    }
 
+   public String getId()
+   {
+      return id;
+   }
+
    public PImage getCurrentImage()
    {
       return images.get(imageIndex);
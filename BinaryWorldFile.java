@@ -0,0 +1,398 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/*
+BinaryWorldFile: a compact binary twin of world.sav, loaded through a memory map
+
+Layout, all ints big-endian:
+   header      MAGIC, VERSION, palette size, background count, entity count,
+               id byte count
+   palette     per background id: byte length, UTF-8 bytes
+   backgrounds BACKGROUND_FIELDS ints each: col, row, palette index
+   entities    ENTITY_FIELDS ints each: kind, col, row, resource limit,
+               resource count, action period, animation period, id length
+   ids         the entity ids' UTF-8 bytes, back to back in entity order
+
+The fixed-width sections are copied out of the mapped file a batch at a time
+with bulk IntBuffer reads, so loading does no tokenizing or number parsing.
+Unlike the text format it keeps full octos full.
+ */
+
+final class BinaryWorldFile
+{
+   private static final int MAGIC = 0x56574231;
+   private static final int VERSION = 1;
+   private static final int HEADER_INTS = 6;
+   private static final String TEMP_SUFFIX = ".tmp";
+   private static final int BACKGROUND_FIELDS = 3;
+   private static final int ENTITY_FIELDS = 8;
+   private static final int BATCH_RECORDS = 4096;
+
+   private static final int BACKGROUND_COL = 0;
+   private static final int BACKGROUND_ROW = 1;
+   private static final int BACKGROUND_PALETTE = 2;
+
+   private static final int KIND = 0;
+   private static final int COL = 1;
+   private static final int ROW = 2;
+   private static final int RESOURCE_LIMIT = 3;
+   private static final int RESOURCE_COUNT = 4;
+   private static final int ACTION_PERIOD = 5;
+   private static final int ANIMATION_PERIOD = 6;
+   private static final int ID_LENGTH = 7;
+
+   private static final int TILE_WIDTH = 32;
+   private static final int TILE_HEIGHT = 32;
+
+   private BinaryWorldFile()
+   {
+   }
+
+   /*
+      Reads a text world with the same rules as ImageStore.load, so both
+      formats accept the same lines, and writes it out in binary.  The
+      world is sized numRows by numCols; anything outside that is dropped,
+      as it would be on load.  The file is written beside binaryFile and
+      moved into place, so a crash never leaves a truncated one behind.
+   */
+   public static void convert(String textFile, String binaryFile,
+                              int numRows, int numCols, ImageStore imageStore)
+   {
+      WorldModel world = new WorldModel(numRows, numCols, new ChunkedWorldGrid(numRows, numCols,
+              Background.createDefaultBackground(imageStore)));
+      ParallelWorldLoader.load(textFile, world, imageStore);
+      File temp = new File(binaryFile + TEMP_SUFFIX);
+      try
+      {
+         save(world, temp.getPath());
+         Files.move(temp.toPath(), new File(binaryFile).toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         temp.delete();
+      }
+   }
+
+   /*
+      Writes every non-default background and every entity but quakes.
+      Only chunked worlds can be saved, as the cells are walked through a
+      checkpoint.
+   */
+   public static void save(WorldModel world, String filename) throws IOException
+   {
+      save(world.checkpoint(), filename);
+   }
+
+   /*
+      Writes a frozen grid, which is safe to do off the simulation thread.
+   */
+   public static void save(ChunkedWorldGrid frozen, String filename) throws IOException
+   {
+      Map<String, Integer> palette = new HashMap<>();
+      List<String> paletteIds = new ArrayList<>();
+      IntList backgrounds = new IntList();
+      IntList entities = new IntList();
+      List<byte[]> ids = new ArrayList<>();
+
+      frozen.visit(new CellVisitor()
+      {
+         public void visitBackground(int x, int y, Background background)
+         {
+            Integer index = palette.get(background.getId());
+            if (index == null)
+            {
+               index = paletteIds.size();
+               palette.put(background.getId(), index);
+               paletteIds.add(background.getId());
+            }
+            backgrounds.add(x);
+            backgrounds.add(y);
+            backgrounds.add(index);
+         }
+
+         public void visitOccupant(int x, int y, Entity occupant)
+         {
+            if (occupant.getKind() == EntityKind.QUAKE)
+            {
+               return;
+            }
+            byte[] id = occupant.getId().getBytes(StandardCharsets.UTF_8);
+            entities.add(occupant.getKind().ordinal());
+            entities.add(x);
+            entities.add(y);
+            entities.add(occupant.getResourceLimit());
+            entities.add(occupant.getResourceCount());
+            entities.add(occupant.getActionPeriod());
+            entities.add(animationPeriod(occupant));
+            entities.add(id.length);
+            ids.add(id);
+         }
+      });
+
+      long idBytes = 0;
+      for (byte[] id : ids)
+      {
+         idBytes += id.length;
+      }
+
+      try (DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(new FileOutputStream(filename))))
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(paletteIds.size());
+         out.writeInt(backgrounds.size() / BACKGROUND_FIELDS);
+         out.writeInt(entities.size() / ENTITY_FIELDS);
+         out.writeInt((int)Math.min(idBytes, Integer.MAX_VALUE));
+         for (String id : paletteIds)
+         {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+         }
+         backgrounds.writeTo(out);
+         entities.writeTo(out);
+         for (byte[] id : ids)
+         {
+            out.write(id);
+         }
+      }
+   }
+
+   /*
+      The text format only has animation periods for octos and crabs, and
+      the other kinds refuse to report one.
+   */
+   private static int animationPeriod(Entity entity)
+   {
+      switch (entity.getKind())
+      {
+         case OCTO_FULL:
+         case OCTO_NOT_FULL:
+         case CRAB:
+            return entity.getAnimationPeriod();
+         default:
+            return 0;
+      }
+   }
+
+   /*
+      Fills world from a binary file.  Like the text loader, an entity on a
+      taken cell is reported and skipped rather than ending the load.
+   */
+   public static void load(String filename, WorldModel world, ImageStore imageStore)
+   {
+      try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+           FileChannel channel = file.getChannel())
+      {
+         if (channel.size() > Integer.MAX_VALUE)
+         {
+            throw new IOException(filename + " is too large to map");
+         }
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         load(buffer, world, imageStore, filename);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+      catch (BufferUnderflowException e)
+      {
+         System.err.println(filename + " is truncated");
+      }
+   }
+
+   private static void load(ByteBuffer buffer, WorldModel world, ImageStore imageStore,
+                            String filename) throws IOException
+   {
+      int[] header = new int[HEADER_INTS];
+      if (buffer.remaining() < HEADER_INTS * Integer.BYTES)
+      {
+         throw new IOException(filename + " is not a binary world file");
+      }
+      buffer.asIntBuffer().get(header);
+      buffer.position(HEADER_INTS * Integer.BYTES);
+      if (header[0] != MAGIC || header[1] != VERSION)
+      {
+         throw new IOException(filename + " is not a binary world file");
+      }
+      int paletteSize = header[2];
+      int backgroundCount = header[3];
+      int entityCount = header[4];
+      int idByteCount = header[5];
+
+      if (paletteSize < 0 || paletteSize > buffer.remaining())
+      {
+         throw new IOException(filename + " is truncated");
+      }
+      Background[] palette = new Background[paletteSize];
+      for (int i = 0; i < paletteSize; i++)
+      {
+         int length = buffer.getInt();
+         if (length < 0 || length > buffer.remaining())
+         {
+            throw new IOException(filename + " is truncated");
+         }
+         byte[] id = new byte[length];
+         buffer.get(id);
+         String name = new String(id, StandardCharsets.UTF_8);
+         // one Background per id, shared by every cell that shows it
+         palette[i] = new Background(name, imageStore.getImageList(name));
+      }
+
+      long needed = ((long)backgroundCount * BACKGROUND_FIELDS
+              + (long)entityCount * ENTITY_FIELDS) * Integer.BYTES + idByteCount;
+      if (backgroundCount < 0 || entityCount < 0 || idByteCount < 0 || needed > buffer.remaining())
+      {
+         throw new IOException(filename + " is truncated");
+      }
+
+      int[] batch = new int[BATCH_RECORDS * Math.max(BACKGROUND_FIELDS, ENTITY_FIELDS)];
+      IntBuffer records = buffer.asIntBuffer();
+      for (int done = 0; done < backgroundCount; )
+      {
+         int count = Math.min(BATCH_RECORDS, backgroundCount - done);
+         records.get(batch, 0, count * BACKGROUND_FIELDS);
+         for (int i = 0; i < count; i++)
+         {
+            int base = i * BACKGROUND_FIELDS;
+            int index = batch[base + BACKGROUND_PALETTE];
+            if (index < 0 || index >= paletteSize)
+            {
+               System.err.println(String.format("invalid background %d", done + i));
+               continue;
+            }
+            world.setBackground(new Point(batch[base + BACKGROUND_COL], batch[base + BACKGROUND_ROW]),
+                    palette[index]);
+         }
+         done += count;
+      }
+
+      // the id bytes start where the entity records end
+      ByteBuffer idBytes = buffer.duplicate();
+      idBytes.position(buffer.position() + (backgroundCount * BACKGROUND_FIELDS
+              + entityCount * ENTITY_FIELDS) * Integer.BYTES);
+      byte[] idBatch = new byte[0];
+      EntityKind[] kinds = EntityKind.values();
+
+      for (int done = 0; done < entityCount; )
+      {
+         int count = Math.min(BATCH_RECORDS, entityCount - done);
+         records.get(batch, 0, count * ENTITY_FIELDS);
+
+         long batchIdBytes = 0;
+         for (int i = 0; i < count; i++)
+         {
+            int length = batch[i * ENTITY_FIELDS + ID_LENGTH];
+            if (length < 0)
+            {
+               throw new IOException(filename + " is truncated");
+            }
+            batchIdBytes += length;
+         }
+         // the lengths must fit in what is left of the id section
+         if (batchIdBytes > idBytes.remaining())
+         {
+            throw new IOException(filename + " is truncated");
+         }
+         if (idBatch.length < batchIdBytes)
+         {
+            idBatch = Arrays.copyOf(idBatch, Math.max((int)batchIdBytes, idBatch.length * 2));
+         }
+         idBytes.get(idBatch, 0, (int)batchIdBytes);
+
+         int idOffset = 0;
+         for (int i = 0; i < count; i++)
+         {
+            int base = i * ENTITY_FIELDS;
+            String id = new String(idBatch, idOffset, batch[base + ID_LENGTH],
+                    StandardCharsets.UTF_8);
+            idOffset += batch[base + ID_LENGTH];
+
+            int kind = batch[base + KIND];
+            if (kind < 0 || kind >= kinds.length)
+            {
+               System.err.println(String.format("invalid entity %d", done + i));
+               continue;
+            }
+            Entity entity = new Entity(kinds[kind], id,
+                    new Point(batch[base + COL], batch[base + ROW]),
+                    imageStore.getImageList(kinds[kind]),
+                    batch[base + RESOURCE_LIMIT], batch[base + RESOURCE_COUNT],
+                    batch[base + ACTION_PERIOD], batch[base + ANIMATION_PERIOD]);
+            try
+            {
+               world.tryAddEntity(entity);
+            }
+            catch (IllegalArgumentException e)
+            {
+               System.err.println(String.format("issue on entity %d: %s",
+                       done + i, e.getMessage()));
+            }
+         }
+         done += count;
+      }
+   }
+
+   /*
+      A growable int array, so saving a large world does not box every
+      field.
+   */
+   private static final class IntList
+   {
+      private int[] values = new int[BATCH_RECORDS];
+      private int size = 0;
+
+      void add(int value)
+      {
+         if (this.size == this.values.length)
+         {
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+         }
+         this.values[this.size++] = value;
+      }
+
+      int size()
+      {
+         return this.size;
+      }
+
+      void writeTo(DataOutputStream out) throws IOException
+      {
+         for (int i = 0; i < this.size; i++)
+         {
+            out.writeInt(this.values[i]);
+         }
+      }
+   }
+
+   /*
+      Converts a text world file: BinaryWorldFile text binary rows cols
+   */
+   public static void main(String[] args)
+   {
+      ImageStore imageStore = new ImageStore(new PImage(TILE_WIDTH, TILE_HEIGHT, PConstants.RGB));
+      convert(args[0], args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), imageStore);
+   }
+}
@@ -0,0 +1,10 @@
+/*
+CellVisitor: receives the non-empty contents of a grid, one cell at a time
+ */
+
+interface CellVisitor
+{
+   void visitBackground(int x, int y, Background background);
+
+   void visitOccupant(int x, int y, Entity occupant);
+}
@@ -0,0 +1,566 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ChunkedWorldGrid: cells stored in fixed-size square chunks that are only allocated
+once something in them differs from empty default ocean
+
+A chunk whose cells all share one background keeps just that background, and a
+chunk with only a handful of occupants keeps them in a short list rather than a
+full occupant array, so memory follows what is actually in the world rather
+than its area.  Backgrounds with the same id are
+interchangeable, which is what lets a loaded chunk collapse back to one value.
+Parallel tile tasks may write cells of the same chunk, so creating or copying a
+chunk is synchronized on the grid and writes within a chunk on the chunk.
+
+checkpoint() freezes the grid in O(1) by starting a new epoch: the chunk table,
+its pages and its chunks are shared with the frozen grid until the first write
+of the new epoch copies whichever of them it goes through.  Checkpoints must be
+taken between ticks, while nothing is writing.
+ */
+
+final class ChunkedWorldGrid
+   implements WorldGrid
+{
+   private static final int CHUNK_SHIFT = 6;
+   private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+   private static final int SPARSE_LIMIT = 16;
+
+   // chunks per page of the chunk table
+   private static final int PAGE_SHIFT = 10;
+   private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+   private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+   private final int numRows;
+   private final int numCols;
+   private final Background defaultBackground;
+   private final int chunkCols;
+   private final boolean frozen;
+   private volatile Table table;
+   private volatile int epoch;
+
+   public ChunkedWorldGrid(int numRows, int numCols, Background defaultBackground)
+   {
+      long chunkRows = (numRows + CHUNK_MASK) >> CHUNK_SHIFT;
+      long chunkCols = (numCols + CHUNK_MASK) >> CHUNK_SHIFT;
+      if (chunkRows * chunkCols > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException("world too large");
+      }
+
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.defaultBackground = defaultBackground;
+      this.chunkCols = (int)chunkCols;
+      this.frozen = false;
+      this.epoch = 0;
+      int chunkCount = (int)(chunkRows * chunkCols);
+      this.table = new Table(0, (chunkCount + PAGE_MASK) >> PAGE_SHIFT);
+   }
+
+   private ChunkedWorldGrid(ChunkedWorldGrid live)
+   {
+      this.numRows = live.numRows;
+      this.numCols = live.numCols;
+      this.defaultBackground = live.defaultBackground;
+      this.chunkCols = live.chunkCols;
+      this.frozen = true;
+      this.epoch = live.epoch;
+      this.table = live.table;
+   }
+
+   /*
+      A read-only grid holding this grid's current contents, unaffected by
+      any later write.
+   */
+   public synchronized ChunkedWorldGrid checkpoint()
+   {
+      if (this.frozen)
+      {
+         return this;
+      }
+      ChunkedWorldGrid checkpoint = new ChunkedWorldGrid(this);
+      this.epoch++;
+      return checkpoint;
+   }
+
+   public Background getBackground(int x, int y)
+   {
+      Chunk chunk = chunkAt(chunkOf(x, y));
+      return chunk == null ? this.defaultBackground : chunk.getBackground(cellOf(x, y));
+   }
+
+   public void setBackground(int x, int y, Background background)
+   {
+      Chunk chunk = writableChunk(chunkOf(x, y), !sameAs(background, this.defaultBackground));
+      if (chunk != null)
+      {
+         chunk.setBackground(cellOf(x, y), background);
+      }
+   }
+
+   public Entity getOccupant(int x, int y)
+   {
+      Chunk chunk = chunkAt(chunkOf(x, y));
+      return chunk == null ? null : chunk.getOccupant(cellOf(x, y));
+   }
+
+   public void setOccupant(int x, int y, Entity entity)
+   {
+      Chunk chunk = writableChunk(chunkOf(x, y), entity != null);
+      if (chunk != null)
+      {
+         chunk.setOccupant(cellOf(x, y), entity);
+      }
+   }
+
+   /*
+      Reports every cell whose background is not the default and every
+      occupant, chunk by chunk; empty chunks cost nothing.
+   */
+   public void visit(CellVisitor visitor)
+   {
+      Table current = this.table;
+      for (int page = 0; page < current.pages.length(); page++)
+      {
+         Page chunks = current.pages.get(page);
+         if (chunks == null)
+         {
+            continue;
+         }
+         for (int slot = 0; slot < PAGE_SIZE; slot++)
+         {
+            Chunk chunk = chunks.chunks.get(slot);
+            if (chunk != null)
+            {
+               int index = page << PAGE_SHIFT | slot;
+               visitChunk(chunk, (index % this.chunkCols) << CHUNK_SHIFT,
+                       (index / this.chunkCols) << CHUNK_SHIFT, visitor);
+            }
+         }
+      }
+   }
+
+   private void visitChunk(Chunk chunk, int left, int top, CellVisitor visitor)
+   {
+      int right = Math.min(left + CHUNK_SIZE, this.numCols);
+      int bottom = Math.min(top + CHUNK_SIZE, this.numRows);
+      for (int y = top; y < bottom; y++)
+      {
+         for (int x = left; x < right; x++)
+         {
+            int cell = cellOf(x, y);
+            Background background = chunk.getBackground(cell);
+            if (!sameAs(background, this.defaultBackground))
+            {
+               visitor.visitBackground(x, y, background);
+            }
+            Entity occupant = chunk.getOccupant(cell);
+            if (occupant != null)
+            {
+               visitor.visitOccupant(x, y, occupant);
+            }
+         }
+      }
+   }
+
+   /*
+      Number of chunks allocated so far, for sizing reports.
+   */
+   public int getAllocatedChunkCount()
+   {
+      Table current = this.table;
+      int count = 0;
+      for (int page = 0; page < current.pages.length(); page++)
+      {
+         Page chunks = current.pages.get(page);
+         for (int slot = 0; chunks != null && slot < PAGE_SIZE; slot++)
+         {
+            if (chunks.chunks.get(slot) != null)
+            {
+               count++;
+            }
+         }
+      }
+      return count;
+   }
+
+   private Chunk chunkAt(int index)
+   {
+      Page page = this.table.pages.get(index >> PAGE_SHIFT);
+      return page == null ? null : page.chunks.get(index & PAGE_MASK);
+   }
+
+   /*
+      The chunk to write, belonging to the current epoch; null when it
+      does not exist and create is false.  A chunk of the current epoch
+      can only have been reached through a table and page of the current
+      epoch, so that case needs no lock.
+   */
+   private Chunk writableChunk(int index, boolean create)
+   {
+      if (this.frozen)
+      {
+         throw new IllegalStateException("checkpoint is read-only");
+      }
+
+      Chunk chunk = chunkAt(index);
+      if (chunk != null && chunk.epoch == this.epoch)
+      {
+         return chunk;
+      }
+      if (chunk == null && !create)
+      {
+         return null;
+      }
+      return copyPath(index, create);
+   }
+
+   private synchronized Chunk copyPath(int index, boolean create)
+   {
+      int current = this.epoch;
+      Table writable = this.table;
+      if (writable.epoch != current)
+      {
+         writable = writable.copy(current);
+         this.table = writable;
+      }
+
+      int pageIndex = index >> PAGE_SHIFT;
+      Page page = writable.pages.get(pageIndex);
+      if (page == null || page.epoch != current)
+      {
+         page = page == null ? new Page(current) : page.copy(current);
+         writable.pages.set(pageIndex, page);
+      }
+
+      Chunk chunk = page.chunks.get(index & PAGE_MASK);
+      if (chunk != null && chunk.epoch == current)
+      {
+         return chunk;
+      }
+      if (chunk == null && !create)
+      {
+         return null;
+      }
+
+      if (chunk == null)
+      {
+         // edge chunks only hold the part of the world that reaches into them
+         int left = (index % this.chunkCols) << CHUNK_SHIFT;
+         int top = (index / this.chunkCols) << CHUNK_SHIFT;
+         chunk = new Chunk(this.defaultBackground, Math.min(CHUNK_SIZE, this.numCols - left),
+                 Math.min(CHUNK_SIZE, this.numRows - top), current);
+      }
+      else
+      {
+         chunk = chunk.copy(current);
+      }
+      page.chunks.set(index & PAGE_MASK, chunk);
+      return chunk;
+   }
+
+   private int chunkOf(int x, int y)
+   {
+      return (y >> CHUNK_SHIFT) * this.chunkCols + (x >> CHUNK_SHIFT);
+   }
+
+   private static int cellOf(int x, int y)
+   {
+      return (y & CHUNK_MASK) << CHUNK_SHIFT | (x & CHUNK_MASK);
+   }
+
+   private static boolean sameAs(Background background, Background other)
+   {
+      return background == other || background.getId().equals(other.getId());
+   }
+
+   private static final class Table
+   {
+      final int epoch;
+      final AtomicReferenceArray<Page> pages;
+
+      Table(int epoch, int pageCount)
+      {
+         this.epoch = epoch;
+         this.pages = new AtomicReferenceArray<>(pageCount);
+      }
+
+      Table copy(int epoch)
+      {
+         Table copy = new Table(epoch, this.pages.length());
+         for (int i = 0; i < this.pages.length(); i++)
+         {
+            copy.pages.set(i, this.pages.get(i));
+         }
+         return copy;
+      }
+   }
+
+   private static final class Page
+   {
+      final int epoch;
+      final AtomicReferenceArray<Chunk> chunks;
+
+      Page(int epoch)
+      {
+         this.epoch = epoch;
+         this.chunks = new AtomicReferenceArray<>(PAGE_SIZE);
+      }
+
+      Page copy(int epoch)
+      {
+         Page copy = new Page(epoch);
+         for (int i = 0; i < PAGE_SIZE; i++)
+         {
+            copy.chunks.set(i, this.chunks.get(i));
+         }
+         return copy;
+      }
+   }
+
+   private static final class Chunk
+   {
+      // backgrounds is null while every cell is uniform
+      private Background uniform;
+      private Background[] backgrounds;
+      private int differing;
+      private final int width;
+      private final int height;
+
+      // a few occupants live in a small copy-on-write list, more in a dense array
+      private volatile Entity[] occupants;
+      private volatile Sparse sparse;
+      private int occupantCount;
+
+      final int epoch;
+
+      Chunk(Background uniform, int width, int height, int epoch)
+      {
+         this.uniform = uniform;
+         this.width = width;
+         this.height = height;
+         this.epoch = epoch;
+      }
+
+      synchronized Chunk copy(int epoch)
+      {
+         Chunk copy = new Chunk(this.uniform, this.width, this.height, epoch);
+         if (this.backgrounds != null)
+         {
+            copy.backgrounds = this.backgrounds.clone();
+            copy.differing = this.differing;
+         }
+         // the sparse list is immutable and can be shared
+         copy.sparse = this.sparse;
+         copy.occupants = this.occupants == null ? null : this.occupants.clone();
+         copy.occupantCount = this.occupantCount;
+         return copy;
+      }
+
+      synchronized Background getBackground(int cell)
+      {
+         return this.backgrounds == null ? this.uniform : this.backgrounds[cell];
+      }
+
+      /*
+         Expands the chunk on the first cell that differs and collapses it
+         again once every cell matches one background.  differing counts
+         cells unlike uniform; when that is all of them, uniform moves to
+         the background just written and the count is redone, so a chunk
+         painted over with one new background collapses to it.  Each
+         recount takes as many writes as it has cells to come round again.
+      */
+      synchronized void setBackground(int cell, Background background)
+      {
+         if (this.backgrounds == null)
+         {
+            if (sameAs(background, this.uniform))
+            {
+               return;
+            }
+            this.backgrounds = new Background[CHUNK_CELLS];
+            Arrays.fill(this.backgrounds, this.uniform);
+            this.differing = 0;
+         }
+
+         if (!sameAs(this.backgrounds[cell], this.uniform))
+         {
+            this.differing--;
+         }
+         this.backgrounds[cell] = background;
+         if (!sameAs(background, this.uniform))
+         {
+            this.differing++;
+         }
+
+         if (this.differing == this.width * this.height)
+         {
+            rebase(background);
+         }
+         if (this.differing == 0)
+         {
+            this.backgrounds = null;
+         }
+      }
+
+      private void rebase(Background background)
+      {
+         this.uniform = background;
+         this.differing = 0;
+         // cells past the world's edge are never read, so they do not count
+         for (int y = 0; y < this.height; y++)
+         {
+            for (int x = 0; x < this.width; x++)
+            {
+               if (!sameAs(this.backgrounds[y << CHUNK_SHIFT | x], background))
+               {
+                  this.differing++;
+               }
+            }
+         }
+      }
+
+      /*
+         Reads the list before the array: setOccupant publishes the array
+         before dropping the list, so a reader that finds no list is sure
+         to see the array if there is one.
+      */
+      Entity getOccupant(int cell)
+      {
+         Sparse few = this.sparse;
+         if (few != null)
+         {
+            return few.get(cell);
+         }
+         Entity[] dense = this.occupants;
+         return dense == null ? null : dense[cell];
+      }
+
+      synchronized void setOccupant(int cell, Entity entity)
+      {
+         Entity[] dense = this.occupants;
+         if (dense != null)
+         {
+            if (dense[cell] != null)
+            {
+               this.occupantCount--;
+            }
+            dense[cell] = entity;
+            if (entity != null)
+            {
+               this.occupantCount++;
+            }
+            if (this.occupantCount == 0)
+            {
+               this.occupants = null;
+            }
+            return;
+         }
+
+         Sparse few = Sparse.with(this.sparse, cell, entity);
+         if (few != null && few.size() > SPARSE_LIMIT)
+         {
+            // publish the dense array before dropping the list
+            this.occupants = few.toDense();
+            this.occupantCount = few.size();
+            this.sparse = null;
+         }
+         else
+         {
+            this.sparse = few;
+         }
+      }
+   }
+
+   /*
+      An immutable list of (cell, occupant) pairs, replaced wholesale on
+      each change so unsynchronized readers always see a consistent copy.
+   */
+   private static final class Sparse
+   {
+      private final short[] cells;
+      private final Entity[] entities;
+
+      private Sparse(short[] cells, Entity[] entities)
+      {
+         this.cells = cells;
+         this.entities = entities;
+      }
+
+      int size()
+      {
+         return this.cells.length;
+      }
+
+      Entity get(int cell)
+      {
+         for (int i = 0; i < this.cells.length; i++)
+         {
+            if (this.cells[i] == cell)
+            {
+               return this.entities[i];
+            }
+         }
+         return null;
+      }
+
+      /*
+         A copy of list with cell set to entity, or null once empty.
+      */
+      static Sparse with(Sparse list, int cell, Entity entity)
+      {
+         int size = list == null ? 0 : list.size();
+         int at = -1;
+         for (int i = 0; i < size; i++)
+         {
+            if (list.cells[i] == cell)
+            {
+               at = i;
+            }
+         }
+
+         if (entity == null)
+         {
+            if (at < 0)
+            {
+               return list;
+            }
+            if (size == 1)
+            {
+               return null;
+            }
+            short[] cells = new short[size - 1];
+            Entity[] entities = new Entity[size - 1];
+            for (int i = 0, j = 0; i < size; i++)
+            {
+               if (i != at)
+               {
+                  cells[j] = list.cells[i];
+                  entities[j++] = list.entities[i];
+               }
+            }
+            return new Sparse(cells, entities);
+         }
+
+         short[] cells = Arrays.copyOf(list == null ? new short[0] : list.cells, at < 0 ? size + 1 : size);
+         Entity[] entities = Arrays.copyOf(list == null ? new Entity[0] : list.entities, cells.length);
+         int slot = at < 0 ? size : at;
+         cells[slot] = (short)cell;
+         entities[slot] = entity;
+         return new Sparse(cells, entities);
+      }
+
+      Entity[] toDense()
+      {
+         Entity[] dense = new Entity[CHUNK_CELLS];
+         for (int i = 0; i < this.cells.length; i++)
+         {
+            dense[this.cells[i]] = this.entities[i];
+         }
+         return dense;
+      }
+   }
+}
@@ -0,0 +1,14 @@
+/*
+Clock: where the scheduler and the main loop get the current time from
+ */
+
+interface Clock
+{
+   long currentTimeMillis();
+
+   /*
+      Told by the scheduler that it is about to run an event due at time.
+      A virtual clock jumps forward to it; wall-clock time ignores it.
+   */
+   void advanceTo(long time);
+}
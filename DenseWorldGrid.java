@@ -0,0 +1,44 @@
+import java.util.Arrays;
+
+/*
+DenseWorldGrid: the original layout, one background and one occupant slot per cell
+allocated up front
+ */
+
+final class DenseWorldGrid
+   implements WorldGrid
+{
+   private Background background[][];
+   private Entity occupancy[][];
+
+   public DenseWorldGrid(int numRows, int numCols, Background defaultBackground)
+   {
+      this.background = new Background[numRows][numCols];
+      this.occupancy = new Entity[numRows][numCols];
+
+      for (int row = 0; row < numRows; row++)
+      {
+         Arrays.fill(this.background[row], defaultBackground);
+      }
+   }
+
+   public Background getBackground(int x, int y)
+   {
+      return this.background[y][x];
+   }
+
+   public void setBackground(int x, int y, Background background)
+   {
+      this.background[y][x] = background;
+   }
+
+   public Entity getOccupant(int x, int y)
+   {
+      return this.occupancy[y][x];
+   }
+
+   public void setOccupant(int x, int y, Entity entity)
+   {
+      this.occupancy[y][x] = entity;
+   }
+}
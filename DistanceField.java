@@ -0,0 +1,338 @@
+import java.util.Arrays;
+import java.util.Optional;
+
+/*
+DistanceField: multi-source BFS distances to the nearest entity of one target kind,
+shared by every mover heading for that kind
+
+Movers (octos and crabs) are treated as open cells since they will move on;
+everything else that is not a target is a wall, except that fish are open for
+crabs, which may step onto them.  Each cell also remembers which target its
+distance leads to, so the nearest target and the next step are both O(1).
+
+Changes that can only shorten distances (a new target, a wall going away) are
+relaxed outward from the changed cell.  Changes that can lengthen them (a target
+eaten, a new wall) first invalidate every cell that no longer has a neighbour
+one step closer to the same target, then reseed those cells from the valid cells
+around them.  Either way only the affected region is touched; the full BFS runs
+once, on first use.
+ */
+
+final class DistanceField
+{
+   private static final int UNREACHABLE = Integer.MAX_VALUE;
+   private static final byte OPEN = 0;
+   private static final byte WALL = 1;
+   private static final byte TARGET = 2;
+
+   // step order: horizontal first, as the greedy movers do
+   private static final int[] STEP_X = {-1, 1, 0, 0};
+   private static final int[] STEP_Y = {0, 0, -1, 1};
+
+   private final WorldModel world;
+   private final EntityKind target;
+   private final int numRows;
+   private final int numCols;
+
+   private final byte[] status;
+   private final int[] distance;
+   private final int[] source;
+   private final int[] queue;
+   private final int[] invalid;
+   private final long[] seeds;
+   private boolean dirty;
+
+   public DistanceField(WorldModel world, EntityKind target)
+   {
+      this.world = world;
+      this.target = target;
+      this.numRows = world.getNumRows();
+      this.numCols = world.getNumCols();
+
+      if ((long)numRows * numCols > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException("world too large");
+      }
+      int cells = numRows * numCols;
+      this.status = new byte[cells];
+      this.distance = new int[cells];
+      this.source = new int[cells];
+      this.queue = new int[cells];
+      this.invalid = new int[cells];
+      this.seeds = new long[cells];
+      this.dirty = true;
+   }
+
+   /*
+      Called by WorldModel whenever what occupies pos may have changed.
+   */
+   public synchronized void cellChanged(Point pos)
+   {
+      if (dirty)
+      {
+         return;
+      }
+
+      int cell = pos.y * numCols + pos.x;
+      byte before = status[cell];
+      byte after = classify(world.getOccupancyCell(pos));
+      if (before == after)
+      {
+         return;
+      }
+      status[cell] = after;
+
+      if (before == TARGET || after == WALL)
+      {
+         lengthen(cell);
+      }
+      else
+      {
+         shorten(cell);
+      }
+   }
+
+   private void shorten(int cell)
+   {
+      int tail = 0;
+      if (status[cell] == TARGET)
+      {
+         distance[cell] = 0;
+         source[cell] = cell;
+         queue[tail++] = cell;
+      }
+      else if (reseed(cell))
+      {
+         // a wall opened up and took its distance from a neighbour
+         queue[tail++] = cell;
+      }
+      propagate(0, tail);
+   }
+
+   private void lengthen(int cell)
+   {
+      distance[cell] = UNREACHABLE;
+      invalid[0] = cell;
+      int count = 1;
+
+      for (int i = 0; i < count; i++)
+      {
+         int from = invalid[i];
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int next = neighbour(from, dir);
+            if (next >= 0 && status[next] == OPEN
+                    && distance[next] != UNREACHABLE && !supported(next))
+            {
+               distance[next] = UNREACHABLE;
+               invalid[count++] = next;
+            }
+         }
+      }
+
+      int seedCount = 0;
+      for (int i = 0; i < count; i++)
+      {
+         int stale = invalid[i];
+         if (status[stale] == OPEN && reseed(stale))
+         {
+            seeds[seedCount++] = (long)distance[stale] << Integer.SIZE | stale;
+         }
+      }
+      Arrays.sort(seeds, 0, seedCount);
+      propagate(seedCount, 0);
+   }
+
+   /*
+      A cell keeps its distance while a neighbour one step closer still
+      leads to the same target.
+   */
+   private boolean supported(int cell)
+   {
+      for (int dir = 0; dir < STEP_X.length; dir++)
+      {
+         int next = neighbour(cell, dir);
+         if (next >= 0 && status[next] != WALL && distance[next] != UNREACHABLE
+                 && distance[next] == distance[cell] - 1 && source[next] == source[cell])
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /*
+      Takes the best distance on offer from the neighbours; false if none
+      of them can reach a target.
+   */
+   private boolean reseed(int cell)
+   {
+      distance[cell] = UNREACHABLE;
+      for (int dir = 0; dir < STEP_X.length; dir++)
+      {
+         int next = neighbour(cell, dir);
+         if (next >= 0 && status[next] != WALL && distance[next] != UNREACHABLE
+                 && distance[next] + 1 < distance[cell])
+         {
+            distance[cell] = distance[next] + 1;
+            source[cell] = source[next];
+         }
+      }
+      return distance[cell] != UNREACHABLE;
+   }
+
+   /*
+      The target a mover at pos would reach first, walking around walls.
+   */
+   public synchronized Optional<Point> nearestTarget(Point pos)
+   {
+      refresh();
+      int cell = pos.y * numCols + pos.x;
+      if (distance[cell] == UNREACHABLE)
+      {
+         return Optional.empty();
+      }
+      return Optional.of(new Point(source[cell] % numCols, source[cell] / numCols));
+   }
+
+   /*
+      A neighbouring cell one step closer to the nearest target that the
+      mover may enter right now, or empty if every such cell is blocked.
+   */
+   public synchronized Optional<Point> nextStep(Point pos)
+   {
+      refresh();
+      int cell = pos.y * numCols + pos.x;
+      int here = distance[cell];
+
+      for (int dir = 0; dir < STEP_X.length; dir++)
+      {
+         int next = neighbour(cell, dir);
+         if (next >= 0 && status[next] == OPEN && distance[next] < here)
+         {
+            Point step = new Point(pos.x + STEP_X[dir], pos.y + STEP_Y[dir]);
+            Entity occupant = world.getOccupancyCell(step);
+            if (occupant == null || canEnter(occupant.getKind()))
+            {
+               return Optional.of(step);
+            }
+         }
+      }
+      return Optional.empty();
+   }
+
+   private void refresh()
+   {
+      if (!dirty)
+      {
+         return;
+      }
+
+      int tail = 0;
+      for (int y = 0; y < numRows; y++)
+      {
+         for (int x = 0; x < numCols; x++)
+         {
+            int cell = y * numCols + x;
+            status[cell] = classify(world.getOccupancyCell(new Point(x, y)));
+            if (status[cell] == TARGET)
+            {
+               distance[cell] = 0;
+               source[cell] = cell;
+               queue[tail++] = cell;
+            }
+            else
+            {
+               distance[cell] = UNREACHABLE;
+            }
+         }
+      }
+      propagate(0, tail);
+      dirty = false;
+   }
+
+   /*
+      Unit-weight Dijkstra: pops whichever is nearer, the next of the sorted
+      seeds or the head of the BFS queue (which starts with [0, tail)), and
+      relaxes its neighbours.  Valid cells never improve, so this only walks
+      the cells that changed.
+   */
+   private void propagate(int seedCount, int tail)
+   {
+      int head = 0;
+      int nextSeed = 0;
+
+      while (head < tail || nextSeed < seedCount)
+      {
+         int cell;
+         if (nextSeed == seedCount ||
+                 (head < tail && distance[queue[head]] <= (int)(seeds[nextSeed] >>> Integer.SIZE)))
+         {
+            cell = queue[head++];
+         }
+         else
+         {
+            long seed = seeds[nextSeed++];
+            cell = (int)seed;
+            if (distance[cell] < (int)(seed >>> Integer.SIZE))
+            {
+               // improved since it was seeded and already queued
+               continue;
+            }
+         }
+
+         int through = distance[cell] + 1;
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int next = neighbour(cell, dir);
+            if (next >= 0 && status[next] == OPEN && through < distance[next])
+            {
+               distance[next] = through;
+               source[next] = source[cell];
+               // popped in distance order, so the first improvement is
+               // final and each cell is queued at most once
+               queue[tail++] = next;
+            }
+         }
+      }
+   }
+
+   private int neighbour(int cell, int dir)
+   {
+      int x = cell % numCols + STEP_X[dir];
+      int y = cell / numCols + STEP_Y[dir];
+      if (x < 0 || x >= numCols || y < 0 || y >= numRows)
+      {
+         return -1;
+      }
+      return y * numCols + x;
+   }
+
+   private byte classify(Entity occupant)
+   {
+      if (occupant == null)
+      {
+         return OPEN;
+      }
+      if (occupant.getKind() == target)
+      {
+         return TARGET;
+      }
+      switch (occupant.getKind())
+      {
+         case OCTO_FULL:
+         case OCTO_NOT_FULL:
+         case CRAB:
+            return OPEN;
+         case FISH:
+            return target == EntityKind.SGRASS ? OPEN : WALL;
+         default:
+            return WALL;
+      }
+   }
+
+   private boolean canEnter(EntityKind occupant)
+   {
+      return occupant == EntityKind.FISH && target == EntityKind.SGRASS;
+   }
+}
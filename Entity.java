@@ -1,3 +1,6 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
@@ -20,6 +23,25 @@ final class Entity
    private int actionPeriod;
    private int animationPeriod;
 
+   // bumped whenever the scheduler cancels this entity's events
+   private int eventGeneration;
+   private int pendingEventCount;
+
+   // set when the endless animation is derived from the clock
+   private long animationStart;
+   private long clockAnimationPeriod;
+
+   // reused for every activity and endless animation this entity schedules
+   private Action activityAction;
+   private Action animationAction;
+
+   // set while this entity's numbers are mirrored in an EntityStore
+   private EntityStore store;
+   private int storeHandle;
+
+   // slot in WorldModel's registry for this kind
+   private int registryIndex;
+
    private static final String QUAKE_ID = "quake";
    private static final int QUAKE_ACTION_PERIOD = 1100;
    private static final int QUAKE_ANIMATION_PERIOD = 100;
@@ -37,6 +59,9 @@ final class Entity
       this.resourceCount = resourceCount;
       this.actionPeriod = actionPeriod;
       this.animationPeriod = animationPeriod;
+      this.clockAnimationPeriod = 0;
+      this.storeHandle = -1;
+      this.registryIndex = -1;
    }
 
    public EntityKind getKind() {
@@ -52,6 +77,9 @@ final class Entity
 
    public void setResourceCount(int resourceCount) {
       this.resourceCount = resourceCount;
+      if (this.store != null) {
+         this.store.set(this.storeHandle, EntityStore.RESOURCE_COUNT, resourceCount);
+      }
    }
 
    public Point getPosition() {
@@ -60,6 +88,10 @@ final class Entity
    }
    public void setPosition(Point position) {
       this.position = position;
+      if (this.store != null) {
+         this.store.set(this.storeHandle, EntityStore.X, position.x);
+         this.store.set(this.storeHandle, EntityStore.Y, position.y);
+      }
    }
 
    public List<PImage> getImages() { return images; }
@@ -68,6 +100,82 @@ final class Entity
 
    public String getId() { return id; }
 
+   public int getEventGeneration() { return eventGeneration; }
+   public int getPendingEventCount() { return pendingEventCount; }
+   public void setPendingEventCount(int pendingEventCount) { this.pendingEventCount = pendingEventCount; }
+
+   public Action getActivityAction() { return activityAction; }
+   public void setActivityAction(Action activityAction) { this.activityAction = activityAction; }
+   public Action getAnimationAction() { return animationAction; }
+   public void setAnimationAction(Action animationAction) { this.animationAction = animationAction; }
+
+   public int getStoreHandle() { return storeHandle; }
+   public int getRegistryIndex() { return registryIndex; }
+   public void setRegistryIndex(int registryIndex) { this.registryIndex = registryIndex; }
+
+   /*
+      Copies this entity's numbers into store under handle; every later
+      change is written through as well, until detachStore.
+   */
+   public void attachStore(EntityStore store, int handle)
+   {
+      store.set(handle, EntityStore.X, this.position.x);
+      store.set(handle, EntityStore.Y, this.position.y);
+      store.set(handle, EntityStore.IMAGE_INDEX, this.imageIndex);
+      store.set(handle, EntityStore.RESOURCE_COUNT, this.resourceCount);
+      store.set(handle, EntityStore.RESOURCE_LIMIT, this.resourceLimit);
+      store.set(handle, EntityStore.ACTION_PERIOD, this.actionPeriod);
+      store.set(handle, EntityStore.ANIMATION_PERIOD, this.animationPeriod);
+      // last, so a scan never sees a live handle with stale numbers
+      store.set(handle, EntityStore.KIND, this.kind.ordinal());
+      this.store = store;
+      this.storeHandle = handle;
+   }
+
+   public void detachStore()
+   {
+      this.store = null;
+      this.storeHandle = -1;
+   }
+
+   /*
+      Writes what readFrom needs to rebuild this entity elsewhere, such as
+      on another shard.  Images, animation frame and events are left out.
+   */
+   public void writeTo(DataOutput out) throws IOException
+   {
+      out.writeInt(this.kind.ordinal());
+      out.writeUTF(this.id);
+      out.writeInt(this.position.x);
+      out.writeInt(this.position.y);
+      out.writeInt(this.resourceLimit);
+      out.writeInt(this.resourceCount);
+      out.writeInt(this.actionPeriod);
+      out.writeInt(this.animationPeriod);
+   }
+
+   public static Entity readFrom(DataInput in, ImageStore imageStore) throws IOException
+   {
+      EntityKind kind = EntityKind.values()[in.readInt()];
+      String id = in.readUTF();
+      Point position = new Point(in.readInt(), in.readInt());
+      int resourceLimit = in.readInt();
+      int resourceCount = in.readInt();
+      int actionPeriod = in.readInt();
+      int animationPeriod = in.readInt();
+      return new Entity(kind, id, position, imageStore.getImageList(kind),
+              resourceLimit, resourceCount, actionPeriod, animationPeriod);
+   }
+
+   /*
+      Invalidates every event stamped with the current generation.
+   */
+   public void cancelPendingEvents()
+   {
+      this.eventGeneration++;
+      this.pendingEventCount = 0;
+   }
+
    public int getAnimationPeriod()
    {
       switch (this.kind)
@@ -87,6 +195,10 @@ final class Entity
    public void nextImage()
    {
       this.imageIndex = (this.imageIndex + 1) % this.images.size();
+      if (this.store != null)
+      {
+         this.store.set(this.storeHandle, EntityStore.IMAGE_INDEX, this.imageIndex);
+      }
    }
 
    public PImage getCurrentImage()
@@ -94,6 +206,27 @@ final class Entity
       return getImages().get(getImageIndex());
    }
 
+   public void startClockAnimation(long start, long period)
+   {
+      this.animationStart = start;
+      this.clockAnimationPeriod = period;
+   }
+
+   /*
+      Same frame the ANIMATION events would have reached by the given
+      time: one step per whole period since the animation started.
+   */
+   public PImage getCurrentImage(long time)
+   {
+      if (this.clockAnimationPeriod <= 0 || time <= this.animationStart)
+      {
+         return getCurrentImage();
+      }
+
+      long frames = (time - this.animationStart) / this.clockAnimationPeriod;
+      return this.images.get((int)((this.imageIndex + frames) % this.images.size()));
+   }
+
    public Point nextPositionCrab(WorldModel world, Point destPos)
    {
       int horiz = Integer.signum(destPos.x - this.position.x);
@@ -143,17 +276,7 @@ final class Entity
 
    public void removeEntityAt(WorldModel world, Point pos)
    {
-      if (world.withinBounds(pos)
-              && world.getOccupancyCell(pos) != null)
-      {
-         Entity entity = world.getOccupancyCell(pos);
-
-         /* this moves the entity just outside of the grid for
-            debugging purposes */
-         entity.position = new Point(-1, -1);
-         world.getEntities().remove(this);
-         world.setOccupancyCell( pos, null);
-      }
+      world.removeEntityAt(pos);
    }
    public static Entity createAtlantis(String id, Point position,
                                        List<PImage> images)
@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+/*
+EntityStore: the per-entity numbers kept column by column in primitive arrays,
+addressed by a stable int handle
+
+Each page holds PAGE_SIZE entities, one int column per field, so a pass over
+one field of every entity walks contiguous memory instead of chasing Entity
+pointers across the heap.  The Entity objects stay behind for behaviour and
+images, and write their numbers through to here while attached.  Pages are
+never moved once allocated, which lets parallel tile tasks update their own
+entities while another task adds one; only handle allocation is synchronized.
+ */
+
+final class EntityStore
+{
+   public static final int KIND = 0;
+   public static final int X = 1;
+   public static final int Y = 2;
+   public static final int IMAGE_INDEX = 3;
+   public static final int RESOURCE_COUNT = 4;
+   public static final int RESOURCE_LIMIT = 5;
+   public static final int ACTION_PERIOD = 6;
+   public static final int ANIMATION_PERIOD = 7;
+   private static final int FIELD_COUNT = 8;
+
+   // handles with no entity hold this in their KIND column
+   private static final int FREE = -1;
+
+   private static final int PAGE_SHIFT = 10;
+   private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+   private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+   private static final EntityKind[] KINDS = EntityKind.values();
+
+   private volatile int[][] pages;
+   private volatile Entity[][] entityPages;
+   private int[] freeHandles;
+   private int freeCount;
+   private volatile int handleLimit;
+   private int size;
+
+   public EntityStore()
+   {
+      this.pages = new int[0][];
+      this.entityPages = new Entity[0][];
+      this.freeHandles = new int[PAGE_SIZE];
+      this.freeCount = 0;
+      this.handleLimit = 0;
+      this.size = 0;
+   }
+
+   /*
+      Copies entity's numbers into a free handle and attaches the entity,
+      so from now on its changes land here too.
+   */
+   public synchronized int add(Entity entity)
+   {
+      int handle;
+      if (this.freeCount > 0)
+      {
+         handle = this.freeHandles[--this.freeCount];
+      }
+      else
+      {
+         handle = this.handleLimit;
+         if ((handle >> PAGE_SHIFT) == this.pages.length)
+         {
+            addPage();
+         }
+      }
+
+      this.entityPages[handle >> PAGE_SHIFT][handle & PAGE_MASK] = entity;
+      entity.attachStore(this, handle);
+
+      if (handle == this.handleLimit)
+      {
+         this.handleLimit = handle + 1;
+      }
+      this.size++;
+      return handle;
+   }
+
+   public synchronized void remove(int handle)
+   {
+      Entity entity = getEntity(handle);
+      if (entity == null)
+      {
+         return;
+      }
+
+      entity.detachStore();
+      set(handle, KIND, FREE);
+      this.entityPages[handle >> PAGE_SHIFT][handle & PAGE_MASK] = null;
+
+      if (this.freeCount == this.freeHandles.length)
+      {
+         this.freeHandles = Arrays.copyOf(this.freeHandles, this.freeCount * 2);
+      }
+      this.freeHandles[this.freeCount++] = handle;
+      this.size--;
+   }
+
+   public int size()
+   {
+      return this.size;
+   }
+
+   /*
+      Every live handle is below this, so scans run [0, getHandleLimit()).
+   */
+   public int getHandleLimit()
+   {
+      return this.handleLimit;
+   }
+
+   public boolean isLive(int handle)
+   {
+      return get(handle, KIND) != FREE;
+   }
+
+   public Entity getEntity(int handle)
+   {
+      return this.entityPages[handle >> PAGE_SHIFT][handle & PAGE_MASK];
+   }
+
+   public EntityKind getKind(int handle)
+   {
+      int kind = get(handle, KIND);
+      return kind == FREE ? null : KINDS[kind];
+   }
+
+   public int get(int handle, int field)
+   {
+      return this.pages[handle >> PAGE_SHIFT][field * PAGE_SIZE + (handle & PAGE_MASK)];
+   }
+
+   public void set(int handle, int field, int value)
+   {
+      this.pages[handle >> PAGE_SHIFT][field * PAGE_SIZE + (handle & PAGE_MASK)] = value;
+   }
+
+   /*
+      Number of live entities of the given kind, reading only the KIND
+      column.
+   */
+   public int count(EntityKind kind)
+   {
+      int[][] current = this.pages;
+      int limit = this.handleLimit;
+      int wanted = kind.ordinal();
+      int count = 0;
+
+      for (int handle = 0; handle < limit; handle += PAGE_SIZE)
+      {
+         int[] page = current[handle >> PAGE_SHIFT];
+         int end = Math.min(PAGE_SIZE, limit - handle);
+         for (int slot = 0; slot < end; slot++)
+         {
+            if (page[KIND * PAGE_SIZE + slot] == wanted)
+            {
+               count++;
+            }
+         }
+      }
+      return count;
+   }
+
+   /*
+      Writes the handles of live entities inside the rectangle to out and
+      returns how many there were, reading only the KIND, X and Y columns.
+   */
+   public int findInRect(int left, int top, int right, int bottom, int[] out)
+   {
+      int[][] current = this.pages;
+      int limit = this.handleLimit;
+      int found = 0;
+
+      for (int handle = 0; handle < limit && found < out.length; handle += PAGE_SIZE)
+      {
+         int[] page = current[handle >> PAGE_SHIFT];
+         int end = Math.min(PAGE_SIZE, limit - handle);
+         for (int slot = 0; slot < end && found < out.length; slot++)
+         {
+            int x = page[X * PAGE_SIZE + slot];
+            int y = page[Y * PAGE_SIZE + slot];
+            if (x >= left && x < right && y >= top && y < bottom
+                    && page[KIND * PAGE_SIZE + slot] != FREE)
+            {
+               out[found++] = handle + slot;
+            }
+         }
+      }
+      return found;
+   }
+
+   private void addPage()
+   {
+      int count = this.pages.length + 1;
+      int[][] grownPages = Arrays.copyOf(this.pages, count);
+      Entity[][] grownEntities = Arrays.copyOf(this.entityPages, count);
+
+      int[] page = new int[FIELD_COUNT * PAGE_SIZE];
+      Arrays.fill(page, KIND * PAGE_SIZE, (KIND + 1) * PAGE_SIZE, FREE);
+      grownPages[count - 1] = page;
+      grownEntities[count - 1] = new Entity[PAGE_SIZE];
+
+      this.entityPages = grownEntities;
+      this.pages = grownPages;
+   }
+}
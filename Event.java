@@ -1,13 +1,25 @@
 final class Event
+   implements Comparable<Event>
 {
    public Action action;
    public long time;
    public Entity entity;
+   public long sequence;
+   public int generation;
+   public int queueHandle;
 
    public Event(Action action, long time, Entity entity)
    {
       this.action = action;
       this.time = time;
       this.entity = entity;
+      this.queueHandle = -1;
+   }
+
+   public int compareTo(Event other)
+   {
+      // events due at the same time run in the order they were scheduled
+      int byTime = Long.compare(this.time, other.time);
+      return byTime != 0 ? byTime : Long.compare(this.sequence, other.sequence);
    }
 }
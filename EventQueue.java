@@ -0,0 +1,45 @@
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+EventQueue: the ordering structure behind EventScheduler
+Events come out in (time, sequence) order no matter which backend is used
+ */
+
+interface EventQueue
+{
+   void add(Event event);
+
+   /*
+      Queues a batch at once, such as events restored from a checkpoint,
+      whose sequence numbers are already set.
+   */
+   void addAll(List<Event> events);
+
+   /*
+      Returns the earliest event without removing it, or null if empty.
+   */
+   Event peek();
+
+   /*
+      Removes and returns the earliest event, or null if empty.
+   */
+   Event poll();
+
+   boolean remove(Event event);
+
+   /*
+      Drops every matching event in one pass and returns how many went.
+   */
+   int removeIf(Predicate<Event> filter);
+
+   /*
+      Visits every queued event, in no particular order.
+   */
+   void forEach(Consumer<Event> action);
+
+   boolean isEmpty();
+
+   int size();
+}
@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /*
 EventScheduler: ideally our way of controlling what happens in our virtual world
@@ -6,69 +8,554 @@ EventScheduler: ideally our way of controlling what happens in our virtual world
 
 final class EventScheduler
 {
-   private PriorityQueue<Event> eventQueue;
-   private Map<Entity, List<Event>> pendingEvents;
+   private EventQueue eventQueue;
+   // movers on other threads cancel events too, so the counts are atomic
+   private final AtomicInteger tombstones;
+   private final AtomicInteger pendingEntities;
+   private SchedulerMetrics metrics;
    private double timeScale;
+   private long nextSequence;
+   private Clock clock;
+   private ParallelTickExecutor parallelExecutor;
+   private List<Event> batch;
+   private WorldJournal journal;
+
+   // per-call budget for updateOnTime; zero means unbounded
+   private int maxEventsPerUpdate;
+   private long maxNanosPerUpdate;
+   private long lagMillis;
+   private long completedTime;
+   private boolean clockAnimation;
+
+   // spent events waiting to be reused, so a steady-state tick allocates nothing
+   private ArrayDeque<Event> freeEvents;
 
    public static final int QUAKE_ANIMATION_REPEAT_COUNT = 10;
    public static final int ATLANTIS_ANIMATION_REPEAT_COUNT = 7;
+   private static final int COMPACT_MIN_TOMBSTONES = 1024;
 
    public EventScheduler(double timeScale)
    {
-      this.eventQueue = new PriorityQueue<>(new EventComparator());
-      this.pendingEvents = new HashMap<>();
+      this(timeScale, new HeapEventQueue());
+   }
+
+   public EventScheduler(double timeScale, EventQueue eventQueue)
+   {
+      this(timeScale, eventQueue, new SystemClock());
+   }
+
+   public EventScheduler(double timeScale, EventQueue eventQueue, Clock clock)
+   {
+      this.eventQueue = eventQueue;
+      this.clock = clock;
+      this.tombstones = new AtomicInteger();
+      this.pendingEntities = new AtomicInteger();
+      this.timeScale = timeScale;
+      this.nextSequence = 0;
+      this.batch = new ArrayList<>();
+      this.freeEvents = new ArrayDeque<>();
+      this.maxEventsPerUpdate = 0;
+      this.maxNanosPerUpdate = 0;
+      this.lagMillis = 0;
+      this.completedTime = clock.currentTimeMillis();
+      this.clockAnimation = false;
+   }
+
+   /*
+      When on, endless animations (octos, crabs) are derived from the clock
+      by the view instead of being driven by an event every frame.  Finite
+      ones (quake, atlantis) still use events so they stop on time.  Only
+      affects entities scheduled after the call.
+   */
+   public void setClockAnimation(boolean clockAnimation)
+   {
+      this.clockAnimation = clockAnimation;
+   }
+
+   /*
+      Affects events scheduled from now on; queued ones keep their times.
+   */
+   public void setTimeScale(double timeScale)
+   {
       this.timeScale = timeScale;
    }
 
+   public double getTimeScale()
+   {
+      return timeScale;
+   }
+
+   /*
+      Starts feeding the given metrics from every dispatched event, or
+      stops when given null.
+   */
+   public void setMetrics(SchedulerMetrics metrics)
+   {
+      this.metrics = metrics;
+   }
+
+   public SchedulerMetrics getMetrics()
+   {
+      return metrics;
+   }
+
+   public int getQueueSize()
+   {
+      return eventQueue.size();
+   }
+
+   public int getTombstoneCount()
+   {
+      return tombstones.get();
+   }
+
+   /*
+      How many entities have at least one live event queued.
+   */
+   public int getPendingEntityCount()
+   {
+      return pendingEntities.get();
+   }
+
+   /*
+      Bounds how much work one updateOnTime call may do, by event count,
+      by elapsed nanoseconds, or both (zero leaves that bound off).  Due
+      events left over when the budget runs out stay queued for the next
+      call, and getLagMillis reports how far behind that leaves us.  The
+      budget only cuts between timestamps, so events due at the same moment
+      always run in the same call and getCompletedTime stays exact.
+   */
+   public void setUpdateBudget(int maxEvents, long maxNanos)
+   {
+      this.maxEventsPerUpdate = maxEvents;
+      this.maxNanosPerUpdate = maxNanos;
+   }
+
+   /*
+      How far the oldest due event was behind the requested time when the
+      last updateOnTime returned; zero when it caught up.
+   */
+   public long getLagMillis()
+   {
+      return lagMillis;
+   }
+
+   /*
+      The time every event before which has run as of the last updateOnTime:
+      the requested time when it caught up, else the oldest event left over.
+      This, not the clock, is what the journal may stamp as done.
+   */
+   public long getCompletedTime()
+   {
+      return completedTime;
+   }
+
+   /*
+      Turns on region-partitioned parallel execution of due events, or
+      back off again when given null.
+   */
+   public void setParallelExecutor(ParallelTickExecutor parallelExecutor)
+   {
+      this.parallelExecutor = parallelExecutor;
+   }
+
+   /*
+      Starts recording every event scheduled and every cancellation, or
+      stops when given null.
+   */
+   public void setJournal(WorldJournal journal)
+   {
+      this.journal = journal;
+   }
+
+   public WorldJournal getJournal()
+   {
+      return journal;
+   }
+
+   /*
+      Where actions draw random numbers: Entity.rand, or in a tile task the
+      task's own stream, so parallel runs do not depend on which thread
+      gets there first.
+   */
+   public Random getRandom()
+   {
+      ParallelTickExecutor.TileTask task = currentTileTask();
+      return task != null ? task.random : Entity.rand;
+   }
+
    public void scheduleEvent(Entity entity, Action action, long afterPeriod)
    {
-      long time = System.currentTimeMillis() +
-              (long)(afterPeriod * this.timeScale);
-      Event event = new Event(action, time, entity);
+      scheduleEventAt(entity, action, this.clock.currentTimeMillis() +
+              (long)(afterPeriod * this.timeScale));
+   }
 
-      this.eventQueue.add(event);
+   /*
+      Schedules for an absolute time rather than after a period, for
+      restores that already know when each event is due.
+   */
+   public void scheduleEventAt(Entity entity, Action action, long time)
+   {
+      if (this.journal != null)
+      {
+         this.journal.recordSchedule(entity, action, time);
+      }
+      ParallelTickExecutor.TileTask task = currentTileTask();
+
+      // the free list belongs to the scheduling thread, so tile tasks allocate
+      Event event = task == null
+              ? obtainEvent(action, time, entity) : new Event(action, time, entity);
+      event.generation = entity.getEventGeneration();
+
+      // update count of pending events for the given entity
+      if (entity.getPendingEventCount() == 0)
+      {
+         countPendingEntities(1);
+      }
+      entity.setPendingEventCount(entity.getPendingEventCount() + 1);
+
+      if (task != null)
+      {
+         // sequenced and queued when the tile's colour finishes
+         task.scheduled.add(event);
+         return;
+      }
 
-      // update list of pending events for the given entity
-      List<Event> pending = this.pendingEvents.getOrDefault(entity,
-              new LinkedList<>());
-      pending.add(event);
-      this.pendingEvents.put(entity, pending);
+      event.sequence = this.nextSequence++;
+      this.eventQueue.add(event);
    }
 
+   /*
+      Cancellation is lazy: the entity's generation moves on, so its queued
+      events are left in place as tombstones and skipped when they come out.
+   */
    public void unscheduleAllEvents(Entity entity)
    {
-      List<Event> pending = this.pendingEvents.remove(entity);
+      if (this.journal != null)
+      {
+         this.journal.recordCancel(entity);
+      }
+      ParallelTickExecutor.TileTask task = currentTileTask();
+      if (task != null)
+      {
+         task.tombstoneDelta += entity.getPendingEventCount();
+      }
+      else
+      {
+         this.tombstones.addAndGet(entity.getPendingEventCount());
+      }
+      if (entity.getPendingEventCount() > 0)
+      {
+         countPendingEntities(-1);
+      }
+      entity.cancelPendingEvents();
+   }
+
+   /*
+      Visits every queued event that has not been cancelled, for saving.
+      Call between ticks.
+   */
+   public void forEachPendingEvent(Consumer<Event> action)
+   {
+      this.eventQueue.forEach(event -> {
+         if (!isCancelled(event))
+         {
+            action.accept(event);
+         }
+      });
+   }
+
+   /*
+      Queues events restored from a checkpoint in one batch.  They keep
+      the sequence numbers they were given, so ties run in their original
+      order, and must go into an empty queue so those cannot collide.
+   */
+   public void loadEvents(List<Event> events)
+   {
+      if (!this.eventQueue.isEmpty())
+      {
+         throw new IllegalStateException("events can only be loaded into an empty queue");
+      }
 
-      if (pending != null)
+      for (Event event : events)
       {
-         for (Event event : pending)
+         event.generation = event.entity.getEventGeneration();
+         if (event.entity.getPendingEventCount() == 0)
          {
-            this.eventQueue.remove(event);
+            this.pendingEntities.incrementAndGet();
          }
+         event.entity.setPendingEventCount(event.entity.getPendingEventCount() + 1);
+         this.nextSequence = Math.max(this.nextSequence, event.sequence + 1);
       }
+      this.eventQueue.addAll(events);
    }
 
    public void removePendingEvent(Event event)
    {
-      List<Event> pending = this.pendingEvents.get(event.entity);
+      if (!isCancelled(event))
+      {
+         event.entity.setPendingEventCount(
+                 event.entity.getPendingEventCount() - 1);
+         if (event.entity.getPendingEventCount() == 0)
+         {
+            countPendingEntities(-1);
+         }
+      }
+   }
 
-      if (pending != null)
+   private void countPendingEntities(int delta)
+   {
+      ParallelTickExecutor.TileTask task = currentTileTask();
+      if (task != null)
       {
-         pending.remove(event);
+         task.pendingEntityDelta += delta;
+      }
+      else
+      {
+         this.pendingEntities.addAndGet(delta);
       }
    }
 
    public void updateOnTime(long time)
    {
+      if (this.parallelExecutor != null)
+      {
+         updateOnTimeParallel(time);
+         return;
+      }
+
+      long startNanos = this.maxNanosPerUpdate > 0 ? System.nanoTime() : 0;
+      int executed = 0;
+      long lastRun = Long.MIN_VALUE;
+
       while (!eventQueue.isEmpty() &&
               eventQueue.peek().time < time)
       {
+         if (eventQueue.peek().time != lastRun && budgetSpent(executed, startNanos))
+         {
+            finishUpdate(time);
+            return;
+         }
+
          Event next = eventQueue.poll();
+         lastRun = next.time;
+
+         this.clock.advanceTo(next.time);
+         dispatch(next);
+         recycleEvent(next);
+         executed++;
+      }
+
+      finishUpdate(time);
+   }
+
+   private void updateOnTimeParallel(long time)
+   {
+      long startNanos = this.maxNanosPerUpdate > 0 ? System.nanoTime() : 0;
+      int executed = 0;
+      long lastRun = Long.MIN_VALUE;
+
+      while (!eventQueue.isEmpty() &&
+              eventQueue.peek().time < time &&
+              (eventQueue.peek().time == lastRun || !budgetSpent(executed, startNanos)))
+      {
+         Event head = eventQueue.peek();
+         if (!ParallelTickExecutor.isLocal(head))
+         {
+            // octos and crabs read the whole world, so they run alone, in
+            // their place in (time, sequence) order between batches
+            eventQueue.poll();
+            lastRun = head.time;
+            this.clock.advanceTo(head.time);
+            dispatch(head);
+            recycleEvent(head);
+            executed++;
+            continue;
+         }
+
+         // wall-clock time is already past everything due, so it all goes
+         // in one batch; simulated time steps through one timestamp at a
+         // time.  Either way the batch ends at the next non-local event.
+         long first = head.time;
+         long batchEnd = this.clock.currentTimeMillis() >= time
+                 ? time : first + 1;
+         int batchLimit = this.maxEventsPerUpdate > 0
+                 ? this.maxEventsPerUpdate - executed : Integer.MAX_VALUE;
+
+         this.batch.clear();
+         while (!eventQueue.isEmpty() &&
+                 eventQueue.peek().time < batchEnd &&
+                 ParallelTickExecutor.isLocal(eventQueue.peek()) &&
+                 (this.batch.size() < batchLimit || eventQueue.peek().time == lastRun))
+         {
+            Event next = eventQueue.poll();
+            lastRun = next.time;
+            this.batch.add(next);
+         }
+
+         this.clock.advanceTo(first);
+         this.parallelExecutor.execute(this.batch, this);
+         executed += this.batch.size();
+
+         for (Event done : this.batch)
+         {
+            recycleEvent(done);
+         }
+      }
+
+      this.batch.clear();
+      finishUpdate(time);
+   }
 
-         removePendingEvent(next);
+   private boolean budgetSpent(int executed, long startNanos)
+   {
+      return (this.maxEventsPerUpdate > 0 && executed >= this.maxEventsPerUpdate) ||
+              (this.maxNanosPerUpdate > 0 &&
+                      System.nanoTime() - startNanos >= this.maxNanosPerUpdate);
+   }
+
+   private void finishUpdate(long time)
+   {
+      if (!eventQueue.isEmpty() && eventQueue.peek().time < time)
+      {
+         // out of budget: simulated time must not pass the work left over
+         this.lagMillis = time - eventQueue.peek().time;
+         this.completedTime = eventQueue.peek().time;
+      }
+      else
+      {
+         this.lagMillis = 0;
+         this.completedTime = time;
+         this.clock.advanceTo(time);
+      }
+      compactIfNeeded();
+   }
+
+   /*
+      Runs one polled event unless it was cancelled after being queued.
+   */
+   void dispatch(Event event)
+   {
+      if (isCancelled(event))
+      {
+         ParallelTickExecutor.TileTask task = currentTileTask();
+         if (task != null)
+         {
+            task.tombstoneDelta--;
+         }
+         else
+         {
+            this.tombstones.decrementAndGet();
+         }
+         return;
+      }
+
+      removePendingEvent(event);
 
-         next.action.executeAction(this);
+      if (this.metrics != null)
+      {
+         this.metrics.recordDispatch(event, this.clock.currentTimeMillis());
       }
+      event.action.executeAction(this);
+   }
+
+   /*
+      Queues what a finished tile task scheduled, in the order it did so.
+   */
+   void mergeTileTask(ParallelTickExecutor.TileTask task)
+   {
+      for (Event event : task.scheduled)
+      {
+         event.sequence = this.nextSequence++;
+         this.eventQueue.add(event);
+      }
+      this.tombstones.addAndGet(task.tombstoneDelta);
+      this.pendingEntities.addAndGet(task.pendingEntityDelta);
+      if (this.journal != null && task.journalRecords != null)
+      {
+         this.journal.append(task.journalRecords);
+      }
+   }
+
+   /*
+      Runs everything due at the earliest pending timestamp, if that is
+      before until.  With a VirtualClock this jumps simulated time straight
+      there instead of waiting, which is what lets a headless run outpace
+      the wall clock.  Returns false once there is nothing left to run
+      before until.
+   */
+   public boolean advanceToNextEvent(long until)
+   {
+      if (this.eventQueue.isEmpty() || this.eventQueue.peek().time >= until)
+      {
+         return false;
+      }
+
+      updateOnTime(this.eventQueue.peek().time + 1);
+      return true;
+   }
+
+   public Clock getClock()
+   {
+      return clock;
+   }
+
+   private ParallelTickExecutor.TileTask currentTileTask()
+   {
+      return this.parallelExecutor == null
+              ? null : this.parallelExecutor.currentTask();
+   }
+
+   private boolean isCancelled(Event event)
+   {
+      return event.generation != event.entity.getEventGeneration();
+   }
+
+   /*
+      Sweeps tombstones out once they make up half the queue, so the cost
+      is amortized over the cancellations that created them.
+   */
+   private void compactIfNeeded()
+   {
+      int dead = this.tombstones.get();
+      if (dead >= COMPACT_MIN_TOMBSTONES && dead * 2 >= this.eventQueue.size())
+      {
+         this.eventQueue.removeIf(this::sweepCancelled);
+      }
+   }
+
+   private boolean sweepCancelled(Event event)
+   {
+      if (isCancelled(event))
+      {
+         // only the swept ones: a mover may be cancelling more right now
+         this.tombstones.decrementAndGet();
+         recycleEvent(event);
+         return true;
+      }
+      return false;
+   }
+
+   private Event obtainEvent(Action action, long time, Entity entity)
+   {
+      Event event = this.freeEvents.pollFirst();
+      if (event == null)
+      {
+         return new Event(action, time, entity);
+      }
+
+      event.action = action;
+      event.time = time;
+      event.entity = entity;
+      return event;
+   }
+
+   private void recycleEvent(Event event)
+   {
+      // drop references so pooled events do not keep dead entities alive
+      event.action = null;
+      event.entity = null;
+      this.freeEvents.addFirst(event);
    }
 
    public void scheduleActions(Entity entity, WorldModel world, ImageStore imageStore)
@@ -76,12 +563,12 @@ final class EventScheduler
       switch (entity.getKind())
       {
          case OCTO_FULL: scheduleEvent(entity, Action.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
-            scheduleEvent(entity, Action.createAnimationAction(entity,0), entity.getAnimationPeriod());
+            scheduleEndlessAnimation(entity);
             break;
 
          case OCTO_NOT_FULL:
             scheduleEvent(entity, Action.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
-            scheduleEvent(entity, Action.createAnimationAction(entity, 0), entity.getAnimationPeriod());
+            scheduleEndlessAnimation(entity);
             break;
 
          case FISH:
@@ -94,8 +581,7 @@ final class EventScheduler
             scheduleEvent(entity,
                     Action.createActivityAction(entity, world, imageStore),
                     entity.getActionPeriod());
-            scheduleEvent(entity,
-                    Action.createAnimationAction(entity, 0), entity.getAnimationPeriod());
+            scheduleEndlessAnimation(entity);
             break;
 
          case QUAKE:
@@ -122,13 +608,38 @@ final class EventScheduler
       }
    }
 
+   /*
+      In clock-derived mode an endless animation needs no events at all:
+      the view works out the frame from how long ago it started.
+   */
+   public void scheduleEndlessAnimation(Entity entity)
+   {
+      if (this.clockAnimation)
+      {
+         entity.startClockAnimation(this.clock.currentTimeMillis(),
+                 Math.max(1, (long)(entity.getAnimationPeriod() * this.timeScale)));
+      }
+      else
+      {
+         scheduleEvent(entity, Action.createAnimationAction(entity, 0),
+                 entity.getAnimationPeriod());
+      }
+   }
+
    public void scheduleActions(WorldModel world, ImageStore imageStore)
    {
-      for (Entity entity : world.getEntities())
+      for (EntityKind kind : EntityKind.values())
       {
-         //Only start actions for entities that include action (not those with just animations)
-         if (entity.getActionPeriod() > 0)
-            this.scheduleActions(entity, world, imageStore);
+         // obstacles never act, so skip them without looking
+         if (kind == EntityKind.OBSTACLE)
+            continue;
+
+         for (Entity entity : world.getEntities(kind))
+         {
+            //Only start actions for entities that include action (not those with just animations)
+            if (entity.getActionPeriod() > 0)
+               this.scheduleActions(entity, world, imageStore);
+         }
       }
    }
 
@@ -0,0 +1,16 @@
+/*
+GreedyPathingStrategy: the original one-step move, horizontal first then vertical
+ */
+
+final class GreedyPathingStrategy
+   implements PathingStrategy
+{
+   public Point nextPosition(WorldModel world, Entity mover, Point destPos)
+   {
+      if (mover.getKind() == EntityKind.CRAB)
+      {
+         return mover.nextPositionCrab(world, destPos);
+      }
+      return mover.nextPositionOcto(world, destPos);
+   }
+}
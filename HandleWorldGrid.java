@@ -0,0 +1,51 @@
+import java.util.Arrays;
+
+/*
+HandleWorldGrid: flat row-major cells whose occupancy is an int handle into an
+EntityStore rather than an Entity reference; 0 is empty, otherwise handle + 1
+ */
+
+final class HandleWorldGrid
+   implements WorldGrid
+{
+   private final int numCols;
+   private final EntityStore store;
+   private final Background[] background;
+   private final int[] occupancy;
+
+   public HandleWorldGrid(int numRows, int numCols, Background defaultBackground,
+                          EntityStore store)
+   {
+      this.numCols = numCols;
+      this.store = store;
+      this.background = new Background[numRows * numCols];
+      this.occupancy = new int[numRows * numCols];
+
+      Arrays.fill(this.background, defaultBackground);
+   }
+
+   public Background getBackground(int x, int y)
+   {
+      return this.background[y * this.numCols + x];
+   }
+
+   public void setBackground(int x, int y, Background background)
+   {
+      this.background[y * this.numCols + x] = background;
+   }
+
+   public Entity getOccupant(int x, int y)
+   {
+      int handle = this.occupancy[y * this.numCols + x] - 1;
+      return handle < 0 ? null : this.store.getEntity(handle);
+   }
+
+   public void setOccupant(int x, int y, Entity entity)
+   {
+      if (entity != null && entity.getStoreHandle() < 0)
+      {
+         throw new IllegalStateException("entity not in store");
+      }
+      this.occupancy[y * this.numCols + x] = entity == null ? 0 : entity.getStoreHandle() + 1;
+   }
+}
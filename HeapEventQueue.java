@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+HeapEventQueue: the original binary heap backend, O(log n) insert and poll
+ */
+
+final class HeapEventQueue
+   implements EventQueue
+{
+   private PriorityQueue<Event> heap;
+
+   public HeapEventQueue()
+   {
+      // events order themselves, which lets addAll rebuild the heap in one pass
+      this.heap = new PriorityQueue<>();
+   }
+
+   public void add(Event event)
+   {
+      this.heap.add(event);
+   }
+
+   /*
+      Rebuilds the heap from the queued events and the batch together;
+      PriorityQueue heapifies a plain collection bottom up in O(n) rather
+      than sifting each event in.
+   */
+   public void addAll(List<Event> events)
+   {
+      List<Event> all = new ArrayList<>(this.heap.size() + events.size());
+      all.addAll(this.heap);
+      all.addAll(events);
+      this.heap = new PriorityQueue<>(all);
+   }
+
+   public Event peek()
+   {
+      return this.heap.peek();
+   }
+
+   public Event poll()
+   {
+      return this.heap.poll();
+   }
+
+   public boolean remove(Event event)
+   {
+      return this.heap.remove(event);
+   }
+
+   public int removeIf(Predicate<Event> filter)
+   {
+      int before = this.heap.size();
+      this.heap.removeIf(filter);
+      return before - this.heap.size();
+   }
+
+   public void forEach(Consumer<Event> action)
+   {
+      this.heap.forEach(action);
+   }
+
+   public boolean isEmpty()
+   {
+      return this.heap.isEmpty();
+   }
+
+   public int size()
+   {
+      return this.heap.size();
+   }
+}
@@ -21,6 +21,8 @@ final class ImageStore
    private final String BGND_KEY = "background";
    private final int PROPERTY_KEY = 0;
    private final String ATLANTIS_KEY = "atlantis";
+   private final String CRAB_KEY = "crab";
+   private final String QUAKE_KEY = "quake";
    private final int OCTO_NUM_PROPERTIES = 7;
    private final int OCTO_ID = 1;
    private final int OCTO_COL = 2;
@@ -51,11 +53,21 @@ final class ImageStore
    private final int SGRASS_ROW = 3;
    private final int SGRASS_ACTION_PERIOD = 4;
 
+   private final int CRAB_NUM_PROPERTIES = 6;
+   private final int CRAB_ID = 1;
+   private final int CRAB_COL = 2;
+   private final int CRAB_ROW = 3;
+   private final int CRAB_ACTION_PERIOD = 4;
+   private final int CRAB_ANIMATION_PERIOD = 5;
+
    private final int BGND_NUM_PROPERTIES = 4;
    private final int BGND_ID = 1;
    private final int BGND_COL = 2;
    private final int BGND_ROW = 3;
 
+   // every kind of line keeps its row in the same field
+   private final int LINE_ROW = 3;
+
    private final int KEYED_IMAGE_MIN = 5;
    private final int KEYED_RED_IDX = 2;
    private final int KEYED_GREEN_IDX = 3;
@@ -74,6 +86,34 @@ final class ImageStore
       return this.images.getOrDefault(key, this.defaultImages);
    }
 
+   /*
+      The images an entity of this kind is drawn with, for entities rebuilt
+      from their numbers rather than from a world file line.
+   */
+   public List<PImage> getImageList(EntityKind kind)
+   {
+      switch (kind)
+      {
+         case OCTO_FULL:
+         case OCTO_NOT_FULL:
+            return getImageList(OCTO_KEY);
+         case OBSTACLE:
+            return getImageList(OBSTACLE_KEY);
+         case FISH:
+            return getImageList(FISH_KEY);
+         case ATLANTIS:
+            return getImageList(ATLANTIS_KEY);
+         case SGRASS:
+            return getImageList(SGRASS_KEY);
+         case CRAB:
+            return getImageList(CRAB_KEY);
+         case QUAKE:
+            return getImageList(QUAKE_KEY);
+         default:
+            return this.defaultImages;
+      }
+   }
+
    private List<PImage> getImages(Map<String, List<PImage>> images, String key)
    {
       List<PImage> imgs = images.get(key);
@@ -126,19 +166,31 @@ final class ImageStore
                return parseAtlantis(properties, world);
             case SGRASS_KEY:
                return parseSgrass(properties, world);
+            case CRAB_KEY:
+               return parseCrab(properties, world);
          }
       }
       return false;
    }
 
    public void load(Scanner in, WorldModel world)
+   {
+      load(in, world, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   /*
+      Loads only the lines whose row is in [firstRow, endRow), for a shard
+      that owns just that band.  Line numbers still count every line.
+   */
+   public void load(Scanner in, WorldModel world, int firstRow, int endRow)
    {
       int lineNumber = 0;
       while (in.hasNextLine())
       {
          try
          {
-            if (!processLine(in.nextLine(), world))
+            String line = in.nextLine();
+            if (inRows(line, firstRow, endRow) && !processLine(line, world))
             {
                System.err.println(String.format("invalid entry on line %d",
                        lineNumber));
@@ -158,6 +210,25 @@ final class ImageStore
       }
    }
 
+   /*
+      Lines too short to have a row are let through for processLine to
+      reject.
+   */
+   private boolean inRows(String line, int firstRow, int endRow)
+   {
+      if (firstRow == Integer.MIN_VALUE && endRow == Integer.MAX_VALUE)
+      {
+         return true;
+      }
+      String[] properties = line.split("\\s");
+      if (properties.length <= LINE_ROW)
+      {
+         return true;
+      }
+      int row = Integer.parseInt(properties[LINE_ROW]);
+      return row >= firstRow && row < endRow;
+   }
+
 
    public void loadImages(Scanner in, PApplet screen)
    {
@@ -282,6 +353,62 @@ final class ImageStore
       }
       return properties.length == SGRASS_NUM_PROPERTIES;
    }
+   private boolean parseCrab(String [] properties, WorldModel world)
+   {
+      if (properties.length == CRAB_NUM_PROPERTIES)
+      {
+         Point pt = new Point(Integer.parseInt(properties[CRAB_COL]),
+                 Integer.parseInt(properties[CRAB_ROW]));
+         Entity entity = Entity.createCrab(properties[CRAB_ID],
+                 pt,
+                 Integer.parseInt(properties[CRAB_ACTION_PERIOD]),
+                 Integer.parseInt(properties[CRAB_ANIMATION_PERIOD]),
+                 getImageList(CRAB_KEY));
+         world.tryAddEntity(entity);
+      }
+      return properties.length == CRAB_NUM_PROPERTIES;
+   }
+
+   /*
+      The line processLine would read back as this background at (col, row).
+   */
+   public String saveLine(Background background, int col, int row)
+   {
+      return BGND_KEY + " " + background.getId() + " " + col + " " + row;
+   }
+
+   /*
+      The line processLine would read back as this entity at (col, row),
+      or null for quakes, which only live for a moment.  Full octos come
+      back as empty ones, since the format has no resource count.  Spawned
+      ids such as "fish -- s1" contain spaces, which are folded to
+      underscores so the line still splits into the right fields.
+   */
+   public String saveLine(Entity entity, int col, int row)
+   {
+      String at = " " + entity.getId().replaceAll("\\s+", "_") + " " + col + " " + row;
+      switch (entity.getKind())
+      {
+         case OCTO_FULL:
+         case OCTO_NOT_FULL:
+            return OCTO_KEY + at + " " + entity.getResourceLimit() + " "
+                    + entity.getActionPeriod() + " " + entity.getAnimationPeriod();
+         case OBSTACLE:
+            return OBSTACLE_KEY + at;
+         case FISH:
+            return FISH_KEY + at + " " + entity.getActionPeriod();
+         case ATLANTIS:
+            return ATLANTIS_KEY + at;
+         case SGRASS:
+            return SGRASS_KEY + at + " " + entity.getActionPeriod();
+         case CRAB:
+            return CRAB_KEY + at + " " + entity.getActionPeriod() + " "
+                    + entity.getAnimationPeriod();
+         default:
+            return null;
+      }
+   }
+
    public void loadImages(String filename, PApplet screen)
    {
       try
@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+KindRegistry: the live entities of one kind packed into an array
+
+Each entity remembers its slot, so removal swaps the last entity into the hole
+and costs O(1) like add.  Iteration order is insertion order until something is
+removed.  Every access is synchronized, as tile tasks add and remove while
+others iterate; an iterator walks a copy taken when it was created.
+ */
+
+final class KindRegistry
+   implements Iterable<Entity>
+{
+   private static final int INITIAL_CAPACITY = 16;
+
+   private Entity[] entities;
+   private int size;
+
+   public KindRegistry()
+   {
+      this.entities = new Entity[INITIAL_CAPACITY];
+      this.size = 0;
+   }
+
+   public synchronized int size()
+   {
+      return this.size;
+   }
+
+   public synchronized Entity get(int index)
+   {
+      return this.entities[index];
+   }
+
+   public synchronized void add(Entity entity)
+   {
+      if (this.size == this.entities.length)
+      {
+         this.entities = Arrays.copyOf(this.entities, this.size * 2);
+      }
+      entity.setRegistryIndex(this.size);
+      this.entities[this.size++] = entity;
+   }
+
+   public synchronized void remove(Entity entity)
+   {
+      int index = entity.getRegistryIndex();
+      if (index < 0 || index >= this.size || this.entities[index] != entity)
+      {
+         return;
+      }
+
+      Entity last = this.entities[--this.size];
+      this.entities[index] = last;
+      last.setRegistryIndex(index);
+      this.entities[this.size] = null;
+      entity.setRegistryIndex(-1);
+   }
+
+   public Iterator<Entity> iterator()
+   {
+      final Entity[] snapshot;
+      synchronized (this)
+      {
+         snapshot = Arrays.copyOf(this.entities, this.size);
+      }
+      return new Iterator<Entity>()
+      {
+         private int next = 0;
+
+         public boolean hasNext()
+         {
+            return this.next < snapshot.length;
+         }
+
+         public Entity next()
+         {
+            if (this.next >= snapshot.length)
+            {
+               throw new NoSuchElementException();
+            }
+            return snapshot[this.next++];
+         }
+      };
+   }
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+OccupancyBits: one bit per cell, set while the cell has an occupant
+
+Rows are padded to whole 64-bit words, so a run of neighbouring cells in a row
+comes out of at most two words and a rectangle is counted with a popcount per
+word.  Neighbouring tiles can share a word when parallel tile tasks run, so
+updates go through AtomicLongArray rather than plain stores.
+ */
+
+final class OccupancyBits
+{
+   private final int numRows;
+   private final int numCols;
+   private final int wordsPerRow;
+   private final AtomicLongArray words;
+
+   public OccupancyBits(int numRows, int numCols)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.wordsPerRow = (numCols + Long.SIZE - 1) / Long.SIZE;
+      this.words = new AtomicLongArray(numRows * this.wordsPerRow);
+   }
+
+   public boolean get(int x, int y)
+   {
+      return (this.words.get(wordOf(x, y)) & bitOf(x)) != 0;
+   }
+
+   public void set(int x, int y, boolean occupied)
+   {
+      long bit = bitOf(x);
+      int word = wordOf(x, y);
+      long before;
+      long after;
+      do
+      {
+         before = this.words.get(word);
+         after = occupied ? before | bit : before & ~bit;
+      }
+      while (before != after && !this.words.compareAndSet(word, before, after));
+   }
+
+   /*
+      Column of the first clear cell in [left, right) of row y, clipped to
+      the grid, or -1 if they are all set.  The run may be at most 64 wide.
+   */
+   public int firstClear(int y, int left, int right)
+   {
+      if (y < 0 || y >= this.numRows)
+      {
+         return -1;
+      }
+      int from = Math.max(left, 0);
+      int to = Math.min(right, this.numCols);
+      if (from >= to)
+      {
+         return -1;
+      }
+
+      int width = to - from;
+      long mask = width == Long.SIZE ? -1L : (1L << width) - 1;
+      long clear = ~bits(y, from, width) & mask;
+      return clear == 0 ? -1 : from + Long.numberOfTrailingZeros(clear);
+   }
+
+   /*
+      Number of clear cells in the rectangle [left, right) x [top, bottom),
+      clipped to the grid.
+   */
+   public int countClear(int left, int top, int right, int bottom)
+   {
+      int fromX = Math.max(left, 0);
+      int toX = Math.min(right, this.numCols);
+      int fromY = Math.max(top, 0);
+      int toY = Math.min(bottom, this.numRows);
+      if (fromX >= toX || fromY >= toY)
+      {
+         return 0;
+      }
+
+      int firstWord = fromX / Long.SIZE;
+      int lastWord = (toX - 1) / Long.SIZE;
+      long firstMask = -1L << (fromX % Long.SIZE);
+      long lastMask = -1L >>> (Long.SIZE - 1 - (toX - 1) % Long.SIZE);
+
+      int set = 0;
+      for (int y = fromY; y < toY; y++)
+      {
+         int row = y * this.wordsPerRow;
+         for (int word = firstWord; word <= lastWord; word++)
+         {
+            long bits = this.words.get(row + word);
+            if (word == firstWord)
+            {
+               bits &= firstMask;
+            }
+            if (word == lastWord)
+            {
+               bits &= lastMask;
+            }
+            set += Long.bitCount(bits);
+         }
+      }
+      return (toX - fromX) * (toY - fromY) - set;
+   }
+
+   /*
+      The width bits of row y starting at column x, lowest bit first;
+      the run must lie inside the row.
+   */
+   private long bits(int y, int x, int width)
+   {
+      int word = wordOf(x, y);
+      int offset = x % Long.SIZE;
+      long bits = this.words.get(word) >>> offset;
+      if (offset + width > Long.SIZE)
+      {
+         bits |= this.words.get(word + 1) << (Long.SIZE - offset);
+      }
+      return bits;
+   }
+
+   private int wordOf(int x, int y)
+   {
+      return y * this.wordsPerRow + x / Long.SIZE;
+   }
+
+   private static long bitOf(int x)
+   {
+      return 1L << (x % Long.SIZE);
+   }
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ParallelTickExecutor: runs a batch of due events across grid tiles on a ForkJoinPool
+
+Only actions whose reads and writes stay within one cell of their entity are run
+in parallel: every animation, plus fish, sea grass, quake and atlantis activities.
+Octos and crabs search the whole world for a target, so the scheduler never puts
+them in a batch: it runs each one on its own, in (time, sequence) order, and
+ends a batch wherever one is due.
+
+Tiles are coloured by the parity of their tile column and row, and the four
+colours run one after another.  No two tiles of the same colour touch, so a
+spawn or removal that spills into a neighbouring tile never races with that
+tile's own events.  Anything a tile task schedules is buffered and handed to
+the scheduler in tile order once its colour is done, so the resulting queue
+does not depend on thread timing.  For the same reason each tile task draws
+random numbers from its own stream, seeded from Entity.rand as the tasks are
+made.
+ */
+
+final class ParallelTickExecutor
+{
+   private static final int COLOURS = 4;
+
+   private final WorldModel world;
+   private final int tileSize;
+   private final ForkJoinPool pool;
+   private final ThreadLocal<TileTask> currentTask;
+
+   public ParallelTickExecutor(WorldModel world, int tileSize)
+   {
+      this(world, tileSize, ForkJoinPool.commonPool());
+   }
+
+   public ParallelTickExecutor(WorldModel world, int tileSize, ForkJoinPool pool)
+   {
+      if (tileSize < 2)
+      {
+         // a one-cell tile would let same-coloured tiles share a neighbour
+         throw new IllegalArgumentException("tile size must be at least 2");
+      }
+      this.world = world;
+      this.tileSize = tileSize;
+      this.pool = pool;
+      this.currentTask = new ThreadLocal<>();
+   }
+
+   /*
+      The tile task running on this thread, or null outside a parallel phase.
+   */
+   public TileTask currentTask()
+   {
+      return currentTask.get();
+   }
+
+   public void execute(List<Event> batch, EventScheduler scheduler)
+   {
+      List<Map<Long, TileTask>> colours = new ArrayList<>(COLOURS);
+      for (int colour = 0; colour < COLOURS; colour++)
+      {
+         colours.add(new TreeMap<>());
+      }
+      List<Event> serial = new ArrayList<>();
+
+      for (Event event : batch)
+      {
+         Point pos = event.entity.getPosition();
+         if (!isLocal(event) || !world.withinBounds(pos))
+         {
+            serial.add(event);
+            continue;
+         }
+
+         int tileCol = pos.x / tileSize;
+         int tileRow = pos.y / tileSize;
+         long key = ((long)tileRow << Integer.SIZE) | tileCol;
+
+         Map<Long, TileTask> tiles = colours.get((tileRow & 1) << 1 | (tileCol & 1));
+         TileTask task = tiles.get(key);
+         if (task == null)
+         {
+            task = new TileTask(scheduler, Entity.rand.nextLong());
+            tiles.put(key, task);
+         }
+         task.events.add(event);
+      }
+
+      for (Map<Long, TileTask> tiles : colours)
+      {
+         if (!tiles.isEmpty())
+         {
+            runAll(tiles.values());
+            for (TileTask task : tiles.values())
+            {
+               scheduler.mergeTileTask(task);
+            }
+         }
+      }
+
+      for (Event event : serial)
+      {
+         scheduler.dispatch(event);
+      }
+   }
+
+   private void runAll(Collection<TileTask> tasks)
+   {
+      try
+      {
+         for (Future<Void> done : pool.invokeAll(tasks))
+         {
+            done.get();
+         }
+      }
+      catch (ExecutionException e)
+      {
+         if (e.getCause() instanceof RuntimeException)
+         {
+            throw (RuntimeException)e.getCause();
+         }
+         throw new IllegalStateException(e.getCause());
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("interrupted during a parallel tick", e);
+      }
+   }
+
+   /*
+      Whether event only touches the cells around its entity, and so can
+      run in a tile task.
+   */
+   static boolean isLocal(Event event)
+   {
+      if (event.action.getKind() == ActionKind.ANIMATION)
+      {
+         return true;
+      }
+
+      switch (event.entity.getKind())
+      {
+         case FISH:
+         case SGRASS:
+         case QUAKE:
+         case ATLANTIS:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /*
+      The events of one tile, run in order on one worker, plus everything
+      they scheduled, cancelled or journalled while running.
+   */
+   final class TileTask
+      implements Callable<Void>
+   {
+      private final EventScheduler scheduler;
+      final List<Event> events;
+      final List<Event> scheduled;
+      byte[] journalRecords;
+      final Random random;
+      int tombstoneDelta;
+      int pendingEntityDelta;
+
+      TileTask(EventScheduler scheduler, long seed)
+      {
+         this.scheduler = scheduler;
+         this.events = new ArrayList<>();
+         this.scheduled = new ArrayList<>();
+         this.journalRecords = null;
+         this.random = new Random(seed);
+         this.tombstoneDelta = 0;
+         this.pendingEntityDelta = 0;
+      }
+
+      public Void call()
+      {
+         currentTask.set(this);
+         WorldJournal journal = scheduler.getJournal();
+         if (journal != null)
+         {
+            journal.beginBuffer();
+         }
+         try
+         {
+            for (Event event : events)
+            {
+               scheduler.dispatch(event);
+            }
+         }
+         finally
+         {
+            if (journal != null)
+            {
+               journalRecords = journal.endBuffer();
+            }
+            currentTask.remove();
+         }
+         return null;
+      }
+   }
+}
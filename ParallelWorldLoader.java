@@ -0,0 +1,453 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ParallelWorldLoader: reads a text world file with every core, same result as ImageStore.load
+
+The file is cut into byte ranges that start and end on line boundaries, and
+each range is read and tokenized on the ForkJoinPool.  Fields are split on the
+raw bytes and numbers are parsed in place, so the only String made per line is
+the id.  Ranges are then applied to the world strictly in file order, each as
+soon as it is ready, while later ranges are still being tokenized.  Placement
+therefore sees exactly the sequence ImageStore.load would: the same lines are
+rejected with "invalid entry on line N", and a taken cell is reported by
+tryAddEntity as "issue on line N: position occupied".
+
+Lines end at \n, \r\n or \r; fields are split on single whitespace characters
+with trailing empty fields dropped, which is what line.split("\\s") does.
+The text is taken to be UTF-8 whatever the platform charset.
+ */
+
+final class ParallelWorldLoader
+{
+   private static final int MIN_RANGE_BYTES = 1 << 20;
+   private static final int MAX_RANGE_BYTES = 1 << 26;
+   private static final int RANGES_PER_THREAD = 4;
+   private static final int SCAN_BYTES = 4096;
+
+   // no line kind has more fields than this, or more numbers than MAX_NUMBERS
+   private static final int MAX_TOKENS = 8;
+   private static final int MAX_NUMBERS = 5;
+   private static final int ID_TOKEN = 1;
+   private static final int FIRST_NUMBER_TOKEN = 2;
+
+   private static final byte INVALID = 0;
+   private static final byte BACKGROUND = 1;
+   private static final byte OCTO = 2;
+   private static final byte OBSTACLE = 3;
+   private static final byte FISH = 4;
+   private static final byte ATLANTIS = 5;
+   private static final byte SGRASS = 6;
+   private static final byte CRAB = 7;
+
+   // indexed by the codes above: the leading key and the exact field count
+   private static final byte[][] KEYS = {
+           null,
+           bytes("background"),
+           bytes("octo"),
+           bytes("obstacle"),
+           bytes("fish"),
+           bytes("atlantis"),
+           bytes("seaGrass"),
+           bytes("crab")
+   };
+   private static final int[] TOKEN_COUNTS = {0, 4, 7, 4, 5, 4, 5, 6};
+
+   private final WorldModel world;
+   private final ImageStore imageStore;
+   private final Map<String, Background> backgrounds;
+
+   private ParallelWorldLoader(WorldModel world, ImageStore imageStore)
+   {
+      this.world = world;
+      this.imageStore = imageStore;
+      this.backgrounds = new HashMap<>();
+   }
+
+   public static void load(String filename, WorldModel world, ImageStore imageStore)
+   {
+      new ParallelWorldLoader(world, imageStore).load(filename, ForkJoinPool.commonPool());
+   }
+
+   private void load(String filename, ForkJoinPool pool)
+   {
+      try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+           FileChannel channel = file.getChannel())
+      {
+         long size = channel.size();
+         long rangeBytes = Math.min(MAX_RANGE_BYTES, Math.max(MIN_RANGE_BYTES,
+                 size / ((long)pool.getParallelism() * RANGES_PER_THREAD)));
+
+         List<Future<Range>> ranges = new ArrayList<>();
+         List<Long> starts = new ArrayList<>();
+         long start = 0;
+         while (start < size)
+         {
+            long end = lineStart(channel, Math.min(start + rangeBytes, size), size);
+            long from = start;
+            ranges.add(pool.submit(() -> tokenize(channel, from, end)));
+            starts.add(from);
+            start = end;
+         }
+
+         int lineNumber = 0;
+         for (int i = 0; i < ranges.size(); i++)
+         {
+            Range range;
+            try
+            {
+               range = ranges.get(i).get();
+            }
+            catch (ExecutionException e)
+            {
+               long end = i + 1 < starts.size() ? starts.get(i + 1) : size;
+               System.err.println("loading " + filename + " stopped at line " + (lineNumber + 1)
+                       + " (bytes " + starts.get(i) + " to " + end + "): " + e.getCause());
+               cancel(ranges, i + 1);
+               return;
+            }
+            catch (InterruptedException e)
+            {
+               System.err.println("loading " + filename + " interrupted at line " + (lineNumber + 1));
+               cancel(ranges, i);
+               Thread.currentThread().interrupt();
+               return;
+            }
+            // let each range go once applied
+            ranges.set(i, null);
+            apply(range, lineNumber);
+            lineNumber += range.lineCount;
+         }
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+      Stops the ranges from first on, which will never be applied.
+   */
+   private static void cancel(List<Future<Range>> ranges, int first)
+   {
+      for (int i = first; i < ranges.size(); i++)
+      {
+         ranges.get(i).cancel(false);
+      }
+   }
+
+   /*
+      The first line start at or after pos: the offset just past a line
+      ending, not splitting a \r\n pair.
+   */
+   private static long lineStart(FileChannel channel, long pos, long size) throws IOException
+   {
+      if (pos <= 0 || pos >= size)
+      {
+         return Math.max(0, Math.min(pos, size));
+      }
+
+      ByteBuffer window = ByteBuffer.allocate(SCAN_BYTES);
+      // base is the byte just before the candidate start
+      long base = pos - 1;
+      while (base < size - 1)
+      {
+         window.clear();
+         readFully(channel, window, base, (int)Math.min(SCAN_BYTES, size - base));
+         int read = window.position();
+         for (int i = 1; i < read; i++)
+         {
+            byte previous = window.get(i - 1);
+            if (previous == '\n' || (previous == '\r' && window.get(i) != '\n'))
+            {
+               return base + i;
+            }
+         }
+         base += read - 1;
+      }
+      return size;
+   }
+
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+           throws IOException
+   {
+      buffer.limit(length);
+      while (buffer.hasRemaining())
+      {
+         if (channel.read(buffer, position + buffer.position()) < 0)
+         {
+            throw new IOException("file shrank while loading");
+         }
+      }
+   }
+
+   /*
+      The tokenized lines of [from, to); runs on a pool thread.
+   */
+   private static Range tokenize(FileChannel channel, long from, long to) throws IOException
+   {
+      byte[] bytes = new byte[(int)(to - from)];
+      readFully(channel, ByteBuffer.wrap(bytes), from, bytes.length);
+
+      Range range = new Range();
+      int[] starts = new int[MAX_TOKENS];
+      int[] ends = new int[MAX_TOKENS];
+      int lineStart = 0;
+      while (lineStart < bytes.length)
+      {
+         int lineEnd = lineStart;
+         while (lineEnd < bytes.length && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r')
+         {
+            lineEnd++;
+         }
+         range.add(bytes, lineStart, lineEnd, starts, ends);
+
+         lineStart = lineEnd + 1;
+         if (lineEnd + 1 < bytes.length && bytes[lineEnd] == '\r' && bytes[lineEnd + 1] == '\n')
+         {
+            lineStart++;
+         }
+      }
+      return range;
+   }
+
+   private void apply(Range range, int firstLine)
+   {
+      for (int line = 0; line < range.lineCount; line++)
+      {
+         int lineNumber = firstLine + line;
+         byte code = range.codes[line];
+         if (code == INVALID)
+         {
+            System.err.println(String.format("invalid entry on line %d", lineNumber));
+            continue;
+         }
+
+         try
+         {
+            place(code, range.ids[line], range.numbers, line * MAX_NUMBERS);
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println(String.format("issue on line %d: %s",
+                    lineNumber, e.getMessage()));
+         }
+      }
+   }
+
+   private void place(byte code, String id, int[] numbers, int at)
+   {
+      Point pt = new Point(numbers[at], numbers[at + 1]);
+      Entity entity;
+      switch (code)
+      {
+         case BACKGROUND:
+            this.world.setBackground(pt, this.backgrounds.computeIfAbsent(id,
+                    key -> new Background(key, this.imageStore.getImageList(key))));
+            return;
+         case OCTO:
+            entity = Entity.createOctoNotFull(id, numbers[at + 2], pt,
+                    numbers[at + 3], numbers[at + 4],
+                    this.imageStore.getImageList(EntityKind.OCTO_NOT_FULL));
+            break;
+         case OBSTACLE:
+            entity = Entity.createObstacle(id, pt,
+                    this.imageStore.getImageList(EntityKind.OBSTACLE));
+            break;
+         case FISH:
+            entity = Entity.createFish(id, pt, numbers[at + 2],
+                    this.imageStore.getImageList(EntityKind.FISH));
+            break;
+         case ATLANTIS:
+            entity = Entity.createAtlantis(id, pt,
+                    this.imageStore.getImageList(EntityKind.ATLANTIS));
+            break;
+         case SGRASS:
+            entity = Entity.createSgrass(id, pt, numbers[at + 2],
+                    this.imageStore.getImageList(EntityKind.SGRASS));
+            break;
+         default:
+            entity = Entity.createCrab(id, pt, numbers[at + 2], numbers[at + 3],
+                    this.imageStore.getImageList(EntityKind.CRAB));
+            break;
+      }
+      this.world.tryAddEntity(entity);
+   }
+
+   /*
+      One range's lines: a code per line, MAX_NUMBERS ints per line and
+      the id, or INVALID and nothing else.
+   */
+   private static final class Range
+   {
+      int lineCount = 0;
+      byte[] codes = new byte[1024];
+      int[] numbers = new int[1024 * MAX_NUMBERS];
+      String[] ids = new String[1024];
+
+      void add(byte[] bytes, int from, int to, int[] starts, int[] ends)
+      {
+         if (this.lineCount == this.codes.length)
+         {
+            this.codes = Arrays.copyOf(this.codes, this.lineCount * 2);
+            this.numbers = Arrays.copyOf(this.numbers, this.lineCount * 2 * MAX_NUMBERS);
+            this.ids = Arrays.copyOf(this.ids, this.lineCount * 2);
+         }
+
+         int line = this.lineCount++;
+         int tokens = split(bytes, from, to, starts, ends);
+         byte code = tokens > 0 && tokens <= MAX_TOKENS ? codeOf(bytes, starts[0], ends[0]) : INVALID;
+         if (code == INVALID || tokens != TOKEN_COUNTS[code])
+         {
+            this.codes[line] = INVALID;
+            return;
+         }
+
+         for (int token = FIRST_NUMBER_TOKEN; token < tokens; token++)
+         {
+            long value = parseInt(bytes, starts[token], ends[token]);
+            if (value == Long.MIN_VALUE)
+            {
+               this.codes[line] = INVALID;
+               return;
+            }
+            this.numbers[line * MAX_NUMBERS + token - FIRST_NUMBER_TOKEN] = (int)value;
+         }
+         this.codes[line] = code;
+         this.ids[line] = new String(bytes, starts[ID_TOKEN], ends[ID_TOKEN] - starts[ID_TOKEN],
+                 StandardCharsets.UTF_8);
+      }
+   }
+
+   /*
+      Splits [from, to) on single whitespace bytes, recording the first
+      MAX_TOKENS fields, and returns the field count with trailing empty
+      fields dropped (more than MAX_TOKENS if there were more).
+   */
+   private static int split(byte[] bytes, int from, int to, int[] starts, int[] ends)
+   {
+      int count = 0;
+      int kept = 0;
+      int start = from;
+      for (int i = from; i <= to; i++)
+      {
+         if (i == to || isWhitespace(bytes[i]))
+         {
+            if (count < MAX_TOKENS)
+            {
+               starts[count] = start;
+               ends[count] = i;
+            }
+            count++;
+            if (i > start)
+            {
+               kept = count;
+            }
+            start = i + 1;
+         }
+      }
+      // an empty line is one empty field, as with String.split
+      return from == to ? 1 : kept;
+   }
+
+   private static boolean isWhitespace(byte b)
+   {
+      return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+   }
+
+   private static byte codeOf(byte[] bytes, int from, int to)
+   {
+      for (byte code = BACKGROUND; code <= CRAB; code++)
+      {
+         if (matches(KEYS[code], bytes, from, to))
+         {
+            return code;
+         }
+      }
+      return INVALID;
+   }
+
+   private static boolean matches(byte[] key, byte[] bytes, int from, int to)
+   {
+      if (key.length != to - from)
+      {
+         return false;
+      }
+      for (int i = 0; i < key.length; i++)
+      {
+         if (key[i] != bytes[from + i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /*
+      The int in [from, to), or Long.MIN_VALUE where Integer.parseInt would
+      throw.  Anything beyond ASCII goes to Integer.parseInt itself, which
+      also accepts other scripts' digits.
+   */
+   private static long parseInt(byte[] bytes, int from, int to)
+   {
+      for (int i = from; i < to; i++)
+      {
+         if (bytes[i] < 0)
+         {
+            try
+            {
+               return Integer.parseInt(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+            }
+            catch (NumberFormatException e)
+            {
+               return Long.MIN_VALUE;
+            }
+         }
+      }
+
+      int i = from;
+      boolean negative = false;
+      if (i < to && (bytes[i] == '-' || bytes[i] == '+'))
+      {
+         negative = bytes[i] == '-';
+         i++;
+      }
+      if (i == to)
+      {
+         return Long.MIN_VALUE;
+      }
+
+      long value = 0;
+      for (; i < to; i++)
+      {
+         int digit = bytes[i] - '0';
+         if (digit < 0 || digit > 9)
+         {
+            return Long.MIN_VALUE;
+         }
+         value = value * 10 + digit;
+         if (value > (long)Integer.MAX_VALUE + 1)
+         {
+            return Long.MIN_VALUE;
+         }
+      }
+      value = negative ? -value : value;
+      return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+   }
+
+   private static byte[] bytes(String key)
+   {
+      return key.getBytes(StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,12 @@
+/*
+PathingStrategy: how a mover picks its next cell on the way to a target
+ */
+
+interface PathingStrategy
+{
+   /*
+      The cell mover should step to next on its way to be adjacent to
+      destPos, or its own position if it should stay put.
+   */
+   Point nextPosition(WorldModel world, Entity mover, Point destPos);
+}
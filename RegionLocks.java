@@ -0,0 +1,42 @@
+import java.util.concurrent.locks.StampedLock;
+
+/*
+RegionLocks: a fixed set of StampedLocks striped over square regions of the grid
+
+Every cell maps to one stripe.  Writers that touch two cells take both stripes
+through get, in ascending stripe order and once if they coincide, so two
+movers crossing each other's regions cannot deadlock; the stamps stay in the
+caller's locals, so the hot move and eat paths allocate nothing.  Single-cell readers try an optimistic read first and only fall back
+to a real read lock if a writer got in the way.  StampedLock is not reentrant,
+so callers take each stripe once per operation.
+ */
+
+final class RegionLocks
+{
+   private static final int REGION_SHIFT = 4;
+   private static final int STRIPES = 64;
+
+   private final int regionCols;
+   private final StampedLock[] stripes;
+
+   public RegionLocks(int numCols)
+   {
+      this.regionCols = (numCols >> REGION_SHIFT) + 1;
+      this.stripes = new StampedLock[STRIPES];
+      for (int i = 0; i < STRIPES; i++)
+      {
+         this.stripes[i] = new StampedLock();
+      }
+   }
+
+   public int stripeOf(Point pos)
+   {
+      long region = (long)(pos.y >> REGION_SHIFT) * this.regionCols + (pos.x >> REGION_SHIFT);
+      return (int)Math.floorMod(region, (long)STRIPES);
+   }
+
+   public StampedLock get(int stripe)
+   {
+      return this.stripes[stripe];
+   }
+}
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+RenderBuffer: hands finished RenderSnapshots from the simulation thread to the
+renderer without either waiting on the other
+
+The simulation fills its back snapshot and swaps it into the ready slot; the
+renderer swaps its front snapshot for the ready one whenever a newer one is
+there.  Plain double buffering would make the simulation wait for the renderer
+to let go of the old front, so a third snapshot sits in the ready slot; each
+side only ever touches the snapshot it holds.  The renderer says which region
+is on screen, and the simulation captures only that region's cells.
+ */
+
+final class RenderBuffer
+{
+   private final AtomicReference<RenderSnapshot> ready;
+   private RenderSnapshot back;
+   private RenderSnapshot front;
+   private long published;
+
+   private volatile int left;
+   private volatile int top;
+   private volatile int numCols;
+   private volatile int numRows;
+
+   public RenderBuffer()
+   {
+      this.ready = new AtomicReference<>(new RenderSnapshot());
+      this.back = new RenderSnapshot();
+      this.front = new RenderSnapshot();
+      this.published = 0;
+   }
+
+   /*
+      Renderer side: the region the next captures should cover.
+   */
+   public void setRegion(int left, int top, int numCols, int numRows)
+   {
+      this.left = left;
+      this.top = top;
+      this.numCols = numCols;
+      this.numRows = numRows;
+   }
+
+   /*
+      Simulation side, at the end of a tick: records what occupies each
+      cell of the current region and publishes it.
+   */
+   public void capture(WorldModel world, long time)
+   {
+      RenderSnapshot snapshot = this.back;
+      snapshot.clear(time);
+
+      int fromX = Math.max(this.left, 0);
+      int fromY = Math.max(this.top, 0);
+      int toX = Math.min(fromX + this.numCols, world.getNumCols());
+      int toY = Math.min(fromY + this.numRows, world.getNumRows());
+      for (int y = fromY; y < toY; y++)
+      {
+         for (int x = fromX; x < toX; x++)
+         {
+            Entity entity = world.getOccupancyCell(x, y);
+            if (entity != null)
+            {
+               snapshot.add(x, y, entity.getCurrentImage(time));
+            }
+         }
+      }
+
+      snapshot.setSequence(++this.published);
+      this.back = this.ready.getAndSet(snapshot);
+   }
+
+   /*
+      Renderer side: the newest published snapshot.  Stays valid until
+      the next call.
+   */
+   public RenderSnapshot front()
+   {
+      if (this.ready.get().getSequence() > this.front.getSequence())
+      {
+         this.front = this.ready.getAndSet(this.front);
+      }
+      return this.front;
+   }
+}
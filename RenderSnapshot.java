@@ -0,0 +1,64 @@
+import java.util.Arrays;
+
+import processing.core.PImage;
+
+/*
+RenderSnapshot: what the renderer needs of one tick, the visible entities'
+positions and the image each was showing
+ */
+
+final class RenderSnapshot
+{
+   private static final int INITIAL_CAPACITY = 64;
+
+   private int[] xs;
+   private int[] ys;
+   private PImage[] images;
+   private int count;
+   private long time;
+   private long sequence;
+
+   public RenderSnapshot()
+   {
+      this.xs = new int[INITIAL_CAPACITY];
+      this.ys = new int[INITIAL_CAPACITY];
+      this.images = new PImage[INITIAL_CAPACITY];
+      this.count = 0;
+      this.sequence = 0;
+   }
+
+   public int getCount() { return count; }
+   public int getX(int i) { return xs[i]; }
+   public int getY(int i) { return ys[i]; }
+   public PImage getImage(int i) { return images[i]; }
+   public long getTime() { return time; }
+   public long getSequence() { return sequence; }
+
+   public void clear(long time)
+   {
+      // drop image references so a stale buffer does not pin them
+      Arrays.fill(this.images, 0, this.count, null);
+      this.count = 0;
+      this.time = time;
+   }
+
+   public void add(int x, int y, PImage image)
+   {
+      if (this.count == this.xs.length)
+      {
+         int capacity = this.count * 2;
+         this.xs = Arrays.copyOf(this.xs, capacity);
+         this.ys = Arrays.copyOf(this.ys, capacity);
+         this.images = Arrays.copyOf(this.images, capacity);
+      }
+      this.xs[this.count] = x;
+      this.ys[this.count] = y;
+      this.images[this.count] = image;
+      this.count++;
+   }
+
+   public void setSequence(long sequence)
+   {
+      this.sequence = sequence;
+   }
+}
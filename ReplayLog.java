@@ -0,0 +1,274 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ReplayLog: everything needed to run a recorded session again, event for event
+
+The simulation itself is deterministic once Entity.rand is seeded and events
+are timed on a VirtualClock, so a recording only keeps what came from
+outside: the seed, the starting time scale, the world file as it was read,
+and each input with the simulated time it arrived at.
+
+Layout, big-endian:
+   header   MAGIC, VERSION, seed, time scale, rows, cols, world byte count,
+            the world file's bytes
+   inputs   simulated time, type, then per type
+               VIEW_SHIFT   viewport col and row after the shift
+               TIME_SCALE   the new time scale
+               END          nothing; the run stopped here
+
+Replaying runs the scheduler up to each input's time, applies the input and
+carries on, ending at END or, if the recording was cut short, at the last
+input.
+ */
+
+final class ReplayLog
+{
+   private static final int MAGIC = 0x56575231;
+   private static final int VERSION = 1;
+
+   private static final byte VIEW_SHIFT = 1;
+   private static final byte TIME_SCALE = 2;
+   private static final byte END = 3;
+
+   private final long seed;
+   private final double timeScale;
+   private final int numRows;
+   private final int numCols;
+   private final String worldText;
+   private DataOutputStream out;
+   private DataInputStream in;
+
+   private ReplayLog(long seed, double timeScale, int numRows, int numCols, String worldText)
+   {
+      this.seed = seed;
+      this.timeScale = timeScale;
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.worldText = worldText;
+   }
+
+   /*
+      Starts a recording, copying in worldFile; the run should then load
+      its world from getWorldText so both read exactly the same lines.
+   */
+   public static ReplayLog record(String filename, long seed, double timeScale,
+                                  int numRows, int numCols, String worldFile) throws IOException
+   {
+      byte[] world = Files.readAllBytes(new File(worldFile).toPath());
+      ReplayLog log = new ReplayLog(seed, timeScale, numRows, numCols,
+              new String(world, StandardCharsets.UTF_8));
+
+      log.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+      log.out.writeInt(MAGIC);
+      log.out.writeInt(VERSION);
+      log.out.writeLong(seed);
+      log.out.writeDouble(timeScale);
+      log.out.writeInt(numRows);
+      log.out.writeInt(numCols);
+      log.out.writeInt(world.length);
+      log.out.write(world);
+      log.out.flush();
+      return log;
+   }
+
+   /*
+      Reads a recording's header, leaving its inputs for replay.
+   */
+   public static ReplayLog open(String filename) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(filename)));
+      try
+      {
+         if (in.readInt() != MAGIC || in.readInt() != VERSION)
+         {
+            throw new IOException(filename + " is not a replay log");
+         }
+         long seed = in.readLong();
+         double timeScale = in.readDouble();
+         int numRows = in.readInt();
+         int numCols = in.readInt();
+         byte[] world = new byte[in.readInt()];
+         in.readFully(world);
+
+         ReplayLog log = new ReplayLog(seed, timeScale, numRows, numCols,
+                 new String(world, StandardCharsets.UTF_8));
+         log.in = in;
+         return log;
+      }
+      catch (IOException e)
+      {
+         in.close();
+         throw e instanceof EOFException ? new IOException(filename + " is truncated") : e;
+      }
+   }
+
+   public long getSeed()
+   {
+      return seed;
+   }
+
+   public double getTimeScale()
+   {
+      return timeScale;
+   }
+
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   public String getWorldText()
+   {
+      return worldText;
+   }
+
+   /*
+      The record methods do nothing once close has run, as it may have from
+      the shutdown hook while a key press is still being handled.
+   */
+   public synchronized void recordViewShift(long time, int col, int row)
+   {
+      if (this.out == null)
+      {
+         return;
+      }
+      try
+      {
+         writeInput(time, VIEW_SHIFT);
+         this.out.writeInt(col);
+         this.out.writeInt(row);
+         this.out.flush();
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public synchronized void recordTimeScale(long time, double timeScale)
+   {
+      if (this.out == null)
+      {
+         return;
+      }
+      try
+      {
+         writeInput(time, TIME_SCALE);
+         this.out.writeDouble(timeScale);
+         this.out.flush();
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+      Marks where the run stopped and closes the recording.
+   */
+   public synchronized void close(long time)
+   {
+      if (this.out == null)
+      {
+         return;
+      }
+      try
+      {
+         writeInput(time, END);
+         this.out.close();
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+      this.out = null;
+   }
+
+   private void writeInput(long time, byte type) throws IOException
+   {
+      this.out.writeLong(time);
+      this.out.writeByte(type);
+   }
+
+   /*
+      Feeds the recorded inputs to a scheduler on a VirtualClock that has
+      been set up like the recorded run: seeded, loaded from getWorldText
+      and with its actions scheduled.  View shifts never touch the
+      simulation, so they only move viewport.
+   */
+   public void replay(EventScheduler scheduler, Viewport viewport) throws IOException
+   {
+      try
+      {
+         while (true)
+         {
+            long time;
+            try
+            {
+               time = this.in.readLong();
+            }
+            catch (EOFException e)
+            {
+               // cut short without an END: stop at the last input
+               return;
+            }
+
+            byte type = this.in.readByte();
+            scheduler.updateOnTime(time);
+            switch (type)
+            {
+               case VIEW_SHIFT:
+                  viewport.shift(this.in.readInt(), this.in.readInt());
+                  break;
+               case TIME_SCALE:
+                  scheduler.setTimeScale(this.in.readDouble());
+                  break;
+               case END:
+                  return;
+               default:
+                  throw new IOException("unknown input " + type);
+            }
+         }
+      }
+      finally
+      {
+         this.in.close();
+      }
+   }
+
+   /*
+      An order-independent digest of every entity, so two replays can be
+      checked for having ended in the same world.
+   */
+   public static long fingerprint(WorldModel world)
+   {
+      long digest = 0;
+      for (Entity entity : world.getEntities())
+      {
+         long hash = entity.getKind().ordinal();
+         hash = hash * 31 + entity.getId().hashCode();
+         hash = hash * 31 + entity.getPosition().hashCode();
+         hash = hash * 31 + entity.getResourceCount();
+         // mixed so that sums of similar entities do not cancel out
+         hash *= 0x9e3779b97f4a7c15L;
+         digest += hash ^ (hash >>> 29);
+      }
+      return digest;
+   }
+}
@@ -0,0 +1,136 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+SchedulerMetrics: counters EventScheduler feeds as it runs events, cheap enough to
+leave on all the time.  Everything is a LongAdder so parallel tile tasks can
+record without contending; nothing is allocated on the recording path.
+ */
+
+final class SchedulerMetrics
+{
+   // bucket 0 is on time (or early), bucket i holds lateness in [2^(i-1), 2^i) ms
+   private static final int LATENESS_BUCKETS = 32;
+
+   private final LongAdder[] lateness;
+   private final LongAdder[][] executed;
+   private final LongAdder[] activityNanos;
+   private final LongAdder[] activityCount;
+
+   private long lastSnapshotNanos;
+   private long[][] lastExecuted;
+
+   public SchedulerMetrics()
+   {
+      int actionKinds = ActionKind.values().length;
+      int entityKinds = EntityKind.values().length;
+
+      this.lateness = newAdders(LATENESS_BUCKETS);
+      this.executed = new LongAdder[actionKinds][];
+      for (int kind = 0; kind < actionKinds; kind++)
+      {
+         this.executed[kind] = newAdders(entityKinds);
+      }
+      this.activityNanos = newAdders(entityKinds);
+      this.activityCount = newAdders(entityKinds);
+
+      this.lastSnapshotNanos = System.nanoTime();
+      this.lastExecuted = new long[actionKinds][entityKinds];
+   }
+
+   public void recordDispatch(Event event, long now)
+   {
+      long late = now - event.time;
+      int bucket = late <= 0 ? 0
+              : Math.min(Long.SIZE - Long.numberOfLeadingZeros(late), LATENESS_BUCKETS - 1);
+
+      this.lateness[bucket].increment();
+      this.executed[event.action.getKind().ordinal()]
+              [event.entity.getKind().ordinal()].increment();
+   }
+
+   public void recordActivity(EntityKind kind, long nanos)
+   {
+      this.activityNanos[kind.ordinal()].add(nanos);
+      this.activityCount[kind.ordinal()].increment();
+   }
+
+   /*
+      Formats every metric as "name value" lines.  Rates are per second
+      since the previous snapshot, so each call starts a new interval.
+   */
+   public synchronized String snapshot(EventScheduler scheduler)
+   {
+      long now = System.nanoTime();
+      double seconds = Math.max(now - this.lastSnapshotNanos, 1) / 1e9;
+      StringBuilder out = new StringBuilder();
+
+      out.append(String.format("queue.size %d%n", scheduler.getQueueSize()));
+      out.append(String.format("queue.tombstones %d%n", scheduler.getTombstoneCount()));
+      out.append(String.format("pending.entities %d%n", scheduler.getPendingEntityCount()));
+      out.append(String.format("lag.millis %d%n", scheduler.getLagMillis()));
+
+      for (int bucket = 0; bucket < LATENESS_BUCKETS; bucket++)
+      {
+         long count = this.lateness[bucket].sum();
+         if (count > 0)
+         {
+            long low = bucket == 0 ? 0 : 1L << (bucket - 1);
+            out.append(String.format("lateness.ms.%d %d%n", low, count));
+         }
+      }
+
+      for (ActionKind action : ActionKind.values())
+      {
+         for (EntityKind entity : EntityKind.values())
+         {
+            long total = this.executed[action.ordinal()][entity.ordinal()].sum();
+            long delta = total - this.lastExecuted[action.ordinal()][entity.ordinal()];
+            this.lastExecuted[action.ordinal()][entity.ordinal()] = total;
+            if (total > 0)
+            {
+               out.append(String.format("executed.%s.%s %d %.1f/s%n",
+                       action, entity, total, delta / seconds));
+            }
+         }
+      }
+
+      for (EntityKind entity : EntityKind.values())
+      {
+         long count = this.activityCount[entity.ordinal()].sum();
+         if (count > 0)
+         {
+            long nanos = this.activityNanos[entity.ordinal()].sum();
+            out.append(String.format("activity.nanos.%s %d avg %d%n",
+                    entity, nanos, nanos / count));
+         }
+      }
+
+      this.lastSnapshotNanos = now;
+      return out.toString();
+   }
+
+   public void writeSnapshot(String filename, EventScheduler scheduler)
+   {
+      try (PrintWriter out = new PrintWriter(new FileWriter(filename)))
+      {
+         out.print(snapshot(scheduler));
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   private static LongAdder[] newAdders(int count)
+   {
+      LongAdder[] adders = new LongAdder[count];
+      for (int i = 0; i < count; i++)
+      {
+         adders[i] = new LongAdder();
+      }
+      return adders;
+   }
+}
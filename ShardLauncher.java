@@ -0,0 +1,62 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ShardLauncher: runs a sharded simulation as N local processes
+
+Each shard is a separate JVM running ShardNode on this machine's classpath, so
+the whole arrangement can be tried out without a cluster.  The shards find
+each other on consecutive loopback ports from BASE_PORT, each print a summary
+of its band when done, and the launcher waits for them all.
+ */
+
+final class ShardLauncher
+{
+   private static final int BASE_PORT = 47000;
+
+   public static void launch(int shards, int numRows, int numCols, int ticks)
+   {
+      if (shards < 1 || numRows / shards < ShardNode.GHOST_ROWS)
+      {
+         // a band thinner than the ghost rows would need ghosts from two shards away
+         throw new IllegalArgumentException("each shard needs at least "
+                 + ShardNode.GHOST_ROWS + " rows");
+      }
+
+      String java = System.getProperty("java.home") + File.separator + "bin"
+              + File.separator + "java";
+      String classpath = System.getProperty("java.class.path");
+      List<Process> processes = new ArrayList<>();
+      try
+      {
+         for (int index = 0; index < shards; index++)
+         {
+            processes.add(new ProcessBuilder(java, "-cp", classpath,
+                    ShardNode.class.getName(),
+                    String.valueOf(index), String.valueOf(shards), String.valueOf(BASE_PORT),
+                    String.valueOf(numRows), String.valueOf(numCols), String.valueOf(ticks))
+                    .inheritIO()
+                    .start());
+         }
+
+         for (int index = 0; index < shards; index++)
+         {
+            int status = processes.get(index).waitFor();
+            if (status != 0)
+            {
+               System.err.println("shard " + index + " exited with status " + status);
+            }
+         }
+      }
+      catch (IOException | InterruptedException e)
+      {
+         System.err.println(e.getMessage());
+         for (Process process : processes)
+         {
+            process.destroy();
+         }
+      }
+   }
+}
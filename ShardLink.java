@@ -0,0 +1,133 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ShardLink: a loopback socket between two neighbouring shards
+
+Each step both ends send one length-prefixed message and then read the
+other's.  Sends go through a writer thread so that two shards writing large
+messages to each other at once cannot both block on full socket buffers.
+ */
+
+final class ShardLink
+{
+   private static final int CONNECT_RETRY_MILLIS = 100;
+   private static final int CONNECT_ATTEMPTS = 300;
+
+   private final Socket socket;
+   private final DataInputStream in;
+   private final DataOutputStream out;
+   private final ExecutorService writer;
+   private Future<?> sent;
+
+   private ShardLink(Socket socket) throws IOException
+   {
+      socket.setTcpNoDelay(true);
+      this.socket = socket;
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      this.writer = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "shard-link");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /*
+      Waits for the neighbour on the other side of server to connect.
+   */
+   public static ShardLink accept(ServerSocket server) throws IOException
+   {
+      return new ShardLink(server.accept());
+   }
+
+   /*
+      Connects to a neighbour's port on this machine, retrying while that
+      shard is still starting up.
+   */
+   public static ShardLink connect(int port) throws IOException
+   {
+      for (int attempt = 1; ; attempt++)
+      {
+         try
+         {
+            return new ShardLink(new Socket(InetAddress.getLoopbackAddress(), port));
+         }
+         catch (IOException e)
+         {
+            if (attempt == CONNECT_ATTEMPTS)
+            {
+               throw e;
+            }
+         }
+
+         try
+         {
+            Thread.sleep(CONNECT_RETRY_MILLIS);
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("interrupted connecting to port " + port);
+         }
+      }
+   }
+
+   /*
+      Queues message for the neighbour and returns at once, so a shard can
+      send to all its neighbours before it waits on any of them.
+   */
+   public void send(byte[] message)
+   {
+      this.sent = this.writer.submit(() -> {
+         this.out.writeInt(message.length);
+         this.out.write(message);
+         this.out.flush();
+         return null;
+      });
+   }
+
+   /*
+      The neighbour's next message; also waits for our last send to finish.
+   */
+   public byte[] receive() throws IOException
+   {
+      byte[] received = new byte[this.in.readInt()];
+      this.in.readFully(received);
+
+      try
+      {
+         if (this.sent != null)
+         {
+            this.sent.get();
+         }
+      }
+      catch (InterruptedException | ExecutionException e)
+      {
+         throw new IOException("send failed: " + e.getMessage());
+      }
+      return received;
+   }
+
+   public void close()
+   {
+      this.writer.shutdown();
+      try
+      {
+         this.socket.close();
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,576 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/*
+ShardNode: one process of a sharded simulation, owning a band of whole rows
+
+Shard i of n owns rows [i * rows / n, (i + 1) * rows / n) and runs its own
+WorldModel and EventScheduler on a VirtualClock.  The world keeps the full
+dimensions but sits on a chunked grid, so the rows a shard does not own cost
+next to nothing.  All shards step simulated time in lockstep, TICK_MILLIS at a
+time, and talk only to the shards directly above and below them.
+
+Between ticks every shard does two exchanges with each neighbour:
+  1. handoffs: entities of ours that moved or spawned into the neighbour's
+     rows, ghosts of the neighbour's that we evicted, and claims on ghosts
+     of the neighbour's that we tried to eat;
+  2. ghosts: the verdicts on the neighbour's claims, then copies of our
+     entities in the GHOST_ROWS rows next to the neighbour, which replace
+     the ghosts it had of ours.
+Ghosts are never scheduled; they are there so movers block on, and hunt,
+what is just across the border.  Anything further away is invisible.
+
+A ghost is never eaten where it is seen, only claimed: the eater gains
+nothing until the owner, which has already run its own tick, grants the
+claim.  The owner grants the first claim on an entity that is still there
+as it was, so an entity is eaten once, and not at all if it changed first.
+
+Action periods come from world.sav, so an entity may move more than one cell
+in a tick; migrants are found by checking every entity of ours against our
+band rather than by scanning the ghost rows.  Migrants restart their actions
+on arrival, and one whose cell was taken in the same tick, or that went past
+the neighbour's band, lands in the nearest free cell of the neighbour's band
+instead.
+ */
+
+final class ShardNode
+{
+   public static final int GHOST_ROWS = 2;
+   private static final long TICK_MILLIS = 100;
+   private static final int PLACE_SEARCH_RADIUS = 8;
+   private static final String LOAD_FILE_NAME = "world.sav";
+   private static final String QUAKE_KEY = "quake";
+   private static final int TILE_WIDTH = 32;
+   private static final int TILE_HEIGHT = 32;
+   private static final Comparator<Entity> MIGRANT_ORDER =
+           Comparator.comparingInt((Entity e) -> e.getPosition().y).thenComparingInt(e -> e.getPosition().x);
+
+   private final int index;
+   private final int top;
+   private final int bottom;
+   private final WorldModel world;
+   private final ImageStore imageStore;
+   private final VirtualClock clock;
+   private final EventScheduler scheduler;
+
+   // the neighbour's copies currently in our ghost rows, and where they sit
+   private final Map<Entity, Point> ghosts;
+
+   // our claims on each neighbour's ghosts this tick, in the order sent,
+   // and our verdicts on each neighbour's claims, to go back with the ghosts
+   private final List<Claim> upClaims;
+   private final List<Claim> downClaims;
+   private final List<Boolean> upVerdicts;
+   private final List<Boolean> downVerdicts;
+
+   private ShardLink up;
+   private ShardLink down;
+
+   public ShardNode(int index, int count, int numRows, int numCols, ImageStore imageStore)
+   {
+      this.index = index;
+      this.top = bandStart(index, count, numRows);
+      this.bottom = bandStart(index + 1, count, numRows);
+      this.imageStore = imageStore;
+      this.world = new WorldModel(numRows, numCols, new ChunkedWorldGrid(numRows, numCols,
+              Background.createDefaultBackground(imageStore)));
+      this.clock = new VirtualClock(0);
+      this.scheduler = new EventScheduler(1.0, new HeapEventQueue(), this.clock);
+      this.ghosts = new IdentityHashMap<>();
+      this.upClaims = new ArrayList<>();
+      this.downClaims = new ArrayList<>();
+      this.upVerdicts = new ArrayList<>();
+      this.downVerdicts = new ArrayList<>();
+      this.world.setRemoteEats(this::claim);
+   }
+
+   public static int bandStart(int index, int count, int numRows)
+   {
+      return (int)((long)index * numRows / count);
+   }
+
+   /*
+      Links up with the neighbours.  Shard i listens on basePort + i for
+      shard i + 1 and connects to shard i - 1, so the chain always forms.
+   */
+   public void connect(int basePort, int count) throws IOException
+   {
+      ServerSocket server = null;
+      if (this.index + 1 < count)
+      {
+         server = new ServerSocket(basePort + this.index, 1, InetAddress.getLoopbackAddress());
+      }
+      if (this.index > 0)
+      {
+         this.up = ShardLink.connect(basePort + this.index - 1);
+      }
+      if (server != null)
+      {
+         this.down = ShardLink.accept(server);
+         server.close();
+      }
+   }
+
+   public void load(String filename)
+   {
+      try
+      {
+         Scanner in = new Scanner(new File(filename));
+         this.imageStore.load(in, this.world, this.top, this.bottom);
+      }
+      catch (FileNotFoundException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public void run(int ticks) throws IOException
+   {
+      this.scheduler.scheduleActions(this.world, this.imageStore);
+      exchangeGhosts();
+
+      for (int tick = 0; tick < ticks; tick++)
+      {
+         this.scheduler.updateOnTime(this.clock.currentTimeMillis() + TICK_MILLIS);
+         exchangeHandoffs();
+         exchangeGhosts();
+      }
+   }
+
+   private void exchangeHandoffs() throws IOException
+   {
+      List<Entity> upMigrants = new ArrayList<>();
+      List<Entity> downMigrants = new ArrayList<>();
+      collectMigrants(upMigrants, downMigrants);
+
+      Map<Entity, Point> upRemovals = new IdentityHashMap<>();
+      Map<Entity, Point> downRemovals = new IdentityHashMap<>();
+      for (Map.Entry<Entity, Point> ghost : this.ghosts.entrySet())
+      {
+         // the world parks removed entities at (-1, -1)
+         if (!this.world.withinBounds(ghost.getKey().getPosition()))
+         {
+            Point cell = ghost.getValue();
+            (cell.y < this.top ? upRemovals : downRemovals).put(ghost.getKey(), cell);
+         }
+      }
+
+      // migrants are written before they leave, as removal parks them too
+      byte[] toUp = writeHandoffs(upMigrants, upRemovals, this.upClaims);
+      byte[] toDown = writeHandoffs(downMigrants, downRemovals, this.downClaims);
+      for (Entity migrant : upMigrants)
+      {
+         depart(migrant);
+      }
+      for (Entity migrant : downMigrants)
+      {
+         depart(migrant);
+      }
+      for (Entity ghost : upRemovals.keySet())
+      {
+         this.ghosts.remove(ghost);
+      }
+      for (Entity ghost : downRemovals.keySet())
+      {
+         this.ghosts.remove(ghost);
+      }
+
+      send(this.up, toUp);
+      send(this.down, toDown);
+      if (this.up != null)
+      {
+         readHandoffs(this.up.receive(), this.upVerdicts);
+      }
+      if (this.down != null)
+      {
+         readHandoffs(this.down.receive(), this.downVerdicts);
+      }
+   }
+
+   /*
+      Our own entities outside our band, however far they went, split into
+      those above it and those below.  They go in row order, as a scan of
+      the cells would find them, so every run hands them over alike.
+   */
+   private void collectMigrants(List<Entity> upMigrants, List<Entity> downMigrants)
+   {
+      List<Entity> leaving = new ArrayList<>();
+      for (Entity entity : this.world.getEntities())
+      {
+         Point pos = entity.getPosition();
+         if ((pos.y < this.top || pos.y >= this.bottom) && this.world.withinBounds(pos) &&
+                 !this.ghosts.containsKey(entity))
+         {
+            leaving.add(entity);
+         }
+      }
+      leaving.sort(MIGRANT_ORDER);
+
+      for (Entity migrant : leaving)
+      {
+         (migrant.getPosition().y < this.top ? upMigrants : downMigrants).add(migrant);
+      }
+   }
+
+   private void depart(Entity migrant)
+   {
+      this.scheduler.unscheduleAllEvents(migrant);
+      this.world.removeEntityAt(migrant.getPosition());
+   }
+
+   private byte[] writeHandoffs(List<Entity> migrants, Map<Entity, Point> removals,
+                                List<Claim> claims) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(migrants.size());
+      for (Entity migrant : migrants)
+      {
+         migrant.writeTo(out);
+      }
+      out.writeInt(removals.size());
+      for (Map.Entry<Entity, Point> removal : removals.entrySet())
+      {
+         out.writeUTF(removal.getKey().getId());
+         out.writeInt(removal.getValue().x);
+         out.writeInt(removal.getValue().y);
+      }
+      out.writeInt(claims.size());
+      for (Claim claim : claims)
+      {
+         out.writeUTF(claim.targetId);
+         out.writeInt(claim.cell.x);
+         out.writeInt(claim.cell.y);
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private void readHandoffs(byte[] message, List<Boolean> verdicts) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+      List<Entity> migrants = new ArrayList<>();
+      for (int count = in.readInt(); count > 0; count--)
+      {
+         migrants.add(Entity.readFrom(in, this.imageStore));
+      }
+
+      // removals first, so a migrant can take the cell an eaten entity left
+      for (int count = in.readInt(); count > 0; count--)
+      {
+         String id = in.readUTF();
+         Point cell = new Point(in.readInt(), in.readInt());
+         Entity occupant = this.world.getOccupancyCell(cell);
+
+         // if the owner has changed it since, it was not what got eaten
+         if (occupant != null && occupant.getId().equals(id) &&
+                 !this.ghosts.containsKey(occupant))
+         {
+            this.scheduler.unscheduleAllEvents(occupant);
+            this.world.removeEntityAt(cell);
+         }
+      }
+
+      for (int count = in.readInt(); count > 0; count--)
+      {
+         String id = in.readUTF();
+         verdicts.add(grant(id, new Point(in.readInt(), in.readInt())));
+      }
+
+      for (Entity migrant : migrants)
+      {
+         arrive(migrant);
+      }
+   }
+
+   /*
+      For remoteEats: takes a ghost of the neighbour's out of our world and
+      claims it, so the eater is owed it only if the owner grants the claim.
+   */
+   private boolean claim(Entity eater, Entity target)
+   {
+      Point cell = this.ghosts.remove(target);
+      if (cell == null)
+      {
+         return false;
+      }
+      // gone from here either way, so nothing else of ours claims it too
+      this.world.removeEntityAt(cell);
+      (cell.y < this.top ? this.upClaims : this.downClaims).add(new Claim(eater, target.getId(), cell));
+      return true;
+   }
+
+   /*
+      Rules on a neighbour's claim on one of ours, eating it for them if
+      it is still there as they saw it.
+   */
+   private boolean grant(String id, Point cell)
+   {
+      Entity occupant = this.world.getOccupancyCell(cell);
+      if (occupant == null || !occupant.getId().equals(id) || this.ghosts.containsKey(occupant))
+      {
+         return false;
+      }
+      this.scheduler.unscheduleAllEvents(occupant);
+      this.world.removeEntityAt(cell);
+      if (occupant.getKind() == EntityKind.SGRASS)
+      {
+         // a crab leaves a quake where the grass was
+         Entity quake = Entity.createQuake(cell, this.imageStore.getImageList(QUAKE_KEY));
+         this.world.addEntity(quake);
+         this.scheduler.scheduleActions(quake, this.world, this.imageStore);
+      }
+      return true;
+   }
+
+   /*
+      Pays out a granted claim.  A crab's quake is the owner's to place, so
+      only an octo has anything to collect.
+   */
+   private void settle(Claim claim, boolean granted)
+   {
+      Entity eater = claim.eater;
+      if (granted && eater.getKind() == EntityKind.OCTO_NOT_FULL &&
+              this.world.withinBounds(eater.getPosition()) &&
+              this.world.getOccupancyCell(eater.getPosition()) == eater)
+      {
+         eater.setResourceCount(eater.getResourceCount() + 1);
+         this.world.transformNotFull(eater, this.scheduler, this.imageStore);
+      }
+   }
+
+   private void arrive(Entity migrant)
+   {
+      Point wanted = migrant.getPosition();
+      Point cell = findFreeCell(wanted.x, Math.max(this.top, Math.min(wanted.y, this.bottom - 1)));
+      if (cell == null)
+      {
+         System.err.println("shard " + this.index + " has no room for " + migrant.getId());
+         return;
+      }
+
+      migrant.setPosition(cell);
+      this.world.addEntity(migrant);
+      this.scheduler.scheduleActions(migrant, this.world, this.imageStore);
+   }
+
+   /*
+      The free cell in our band nearest (x, y), looking out ring by ring,
+      or null if there is none within PLACE_SEARCH_RADIUS.
+   */
+   private Point findFreeCell(int x, int y)
+   {
+      for (int radius = 0; radius <= PLACE_SEARCH_RADIUS; radius++)
+      {
+         for (int dy = -radius; dy <= radius; dy++)
+         {
+            for (int dx = -radius; dx <= radius; dx++)
+            {
+               if (Math.max(Math.abs(dx), Math.abs(dy)) != radius)
+               {
+                  continue;
+               }
+               Point cell = new Point(x + dx, y + dy);
+               if (cell.y >= this.top && cell.y < this.bottom &&
+                       this.world.withinBounds(cell) && !this.world.isOccupied(cell))
+               {
+                  return cell;
+               }
+            }
+         }
+      }
+      return null;
+   }
+
+   private void exchangeGhosts() throws IOException
+   {
+      send(this.up, writeGhosts(this.upVerdicts,
+              this.top, Math.min(this.top + GHOST_ROWS, this.bottom)));
+      send(this.down, writeGhosts(this.downVerdicts,
+              Math.max(this.bottom - GHOST_ROWS, this.top), this.bottom));
+      this.upVerdicts.clear();
+      this.downVerdicts.clear();
+
+      for (Map.Entry<Entity, Point> ghost : this.ghosts.entrySet())
+      {
+         if (this.world.getOccupancyCell(ghost.getValue()) == ghost.getKey())
+         {
+            this.world.removeEntityAt(ghost.getValue());
+         }
+      }
+      this.ghosts.clear();
+
+      if (this.up != null)
+      {
+         readGhosts(this.up.receive(), this.upClaims);
+      }
+      if (this.down != null)
+      {
+         readGhosts(this.down.receive(), this.downClaims);
+      }
+   }
+
+   private byte[] writeGhosts(List<Boolean> verdicts, int from, int to) throws IOException
+   {
+      List<Entity> boundary = new ArrayList<>();
+      for (int y = from; y < to; y++)
+      {
+         for (int x = 0; x < this.world.getNumCols(); x++)
+         {
+            Entity occupant = this.world.getOccupancyCell(x, y);
+            if (occupant != null)
+            {
+               boundary.add(occupant);
+            }
+         }
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(verdicts.size());
+      for (boolean granted : verdicts)
+      {
+         out.writeBoolean(granted);
+      }
+      out.writeInt(boundary.size());
+      for (Entity entity : boundary)
+      {
+         entity.writeTo(out);
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private void readGhosts(byte[] message, List<Claim> claims) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+      int verdicts = in.readInt();
+      for (int i = 0; i < verdicts; i++)
+      {
+         settle(claims.get(i), in.readBoolean());
+      }
+      claims.clear();
+
+      for (int count = in.readInt(); count > 0; count--)
+      {
+         Entity ghost = Entity.readFrom(in, this.imageStore);
+         Point cell = ghost.getPosition();
+         if (this.world.withinBounds(cell) && !this.world.isOccupied(cell))
+         {
+            this.world.addEntity(ghost);
+            this.ghosts.put(ghost, cell);
+         }
+      }
+   }
+
+   private static void send(ShardLink link, byte[] message)
+   {
+      if (link != null)
+      {
+         link.send(message);
+      }
+   }
+
+   /*
+      How many of each kind this shard owns, ghosts left out.
+   */
+   public String summary()
+   {
+      Map<EntityKind, Integer> counts = new EnumMap<>(EntityKind.class);
+      for (EntityKind kind : EntityKind.values())
+      {
+         int owned = 0;
+         for (Entity entity : this.world.getEntities(kind))
+         {
+            if (!this.ghosts.containsKey(entity))
+            {
+               owned++;
+            }
+         }
+         if (owned > 0)
+         {
+            counts.put(kind, owned);
+         }
+      }
+      return "shard " + this.index + " rows " + this.top + "-" + (this.bottom - 1)
+              + " at " + this.clock.currentTimeMillis() + "ms: " + counts;
+   }
+
+   public void close()
+   {
+      if (this.up != null)
+      {
+         this.up.close();
+      }
+      if (this.down != null)
+      {
+         this.down.close();
+      }
+   }
+
+   /*
+      Started by ShardLauncher as: ShardNode index count basePort rows cols ticks
+   */
+   public static void main(String[] args)
+   {
+      int index = Integer.parseInt(args[0]);
+      int count = Integer.parseInt(args[1]);
+      int basePort = Integer.parseInt(args[2]);
+      int numRows = Integer.parseInt(args[3]);
+      int numCols = Integer.parseInt(args[4]);
+      int ticks = Integer.parseInt(args[5]);
+
+      // shards never draw, so every image is the blank default
+      ImageStore imageStore = new ImageStore(new PImage(TILE_WIDTH, TILE_HEIGHT, PConstants.RGB));
+      ShardNode node = new ShardNode(index, count, numRows, numCols, imageStore);
+      try
+      {
+         node.connect(basePort, count);
+         node.load(LOAD_FILE_NAME);
+         node.run(ticks);
+         System.out.println(node.summary());
+      }
+      catch (IOException e)
+      {
+         System.err.println("shard " + index + ": " + e.getMessage());
+         System.exit(1);
+      }
+      finally
+      {
+         node.close();
+      }
+   }
+
+   /*
+      A ghost we tried to eat, by what the owner knows it as.
+   */
+   private static final class Claim
+   {
+      final Entity eater;
+      final String targetId;
+      final Point cell;
+
+      Claim(Entity eater, String targetId, Point cell)
+      {
+         this.eater = eater;
+         this.targetId = targetId;
+         this.cell = cell;
+      }
+   }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/*
+SpatialIndex: a uniform grid of buckets holding the entities of one kind
+
+findNearest searches outward ring by ring from the bucket containing the query
+point and stops at the first ring that cannot hold anything closer than the
+best match so far, so the cost depends on how far away the answer is rather
+than on how many entities exist.  Queries and mutations are both synchronized,
+since tile tasks search for targets while other tiles add, move and remove.
+ */
+
+final class SpatialIndex
+{
+   private final int bucketSize;
+   private final int bucketCols;
+   private final int bucketRows;
+   private final List<Entity>[] buckets;
+   private int count;
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public SpatialIndex(int numRows, int numCols, int bucketSize)
+   {
+      this.bucketSize = bucketSize;
+      this.bucketCols = (numCols + bucketSize - 1) / bucketSize;
+      this.bucketRows = (numRows + bucketSize - 1) / bucketSize;
+      this.buckets = new List[bucketCols * bucketRows];
+      this.count = 0;
+   }
+
+   public synchronized int size()
+   {
+      return count;
+   }
+
+   public synchronized void add(Entity entity, Point pos)
+   {
+      int bucket = bucketOf(pos);
+      if (this.buckets[bucket] == null)
+      {
+         this.buckets[bucket] = new ArrayList<>();
+      }
+      this.buckets[bucket].add(entity);
+      this.count++;
+   }
+
+   public synchronized void remove(Entity entity, Point pos)
+   {
+      List<Entity> entities = this.buckets[bucketOf(pos)];
+      int at = entities == null ? -1 : indexOf(entities, entity);
+      if (at >= 0)
+      {
+         // order within a bucket does not matter, so swap-remove
+         int last = entities.size() - 1;
+         entities.set(at, entities.get(last));
+         entities.remove(last);
+         this.count--;
+      }
+   }
+
+   public synchronized void move(Entity entity, Point from, Point to)
+   {
+      if (bucketOf(from) != bucketOf(to))
+      {
+         remove(entity, from);
+         add(entity, to);
+      }
+   }
+
+   public synchronized Optional<Entity> findNearest(Point pos)
+   {
+      if (this.count == 0)
+      {
+         return Optional.empty();
+      }
+
+      int col = Math.min(Math.max(pos.x / bucketSize, 0), bucketCols - 1);
+      int row = Math.min(Math.max(pos.y / bucketSize, 0), bucketRows - 1);
+      int maxRing = Math.max(Math.max(col, bucketCols - 1 - col),
+              Math.max(row, bucketRows - 1 - row));
+
+      Entity nearest = null;
+      int nearestDistance = Integer.MAX_VALUE;
+
+      for (int ring = 0; ring <= maxRing; ring++)
+      {
+         for (int r = row - ring; r <= row + ring; r++)
+         {
+            if (r < 0 || r >= bucketRows)
+            {
+               continue;
+            }
+
+            // interior rows of the ring only contribute their two ends
+            int step = (r == row - ring || r == row + ring) ? 1 : Math.max(2 * ring, 1);
+            for (int c = col - ring; c <= col + ring; c += step)
+            {
+               if (c < 0 || c >= bucketCols)
+               {
+                  continue;
+               }
+
+               List<Entity> entities = this.buckets[r * bucketCols + c];
+               if (entities == null)
+               {
+                  continue;
+               }
+
+               for (Entity other : entities)
+               {
+                  int otherDistance = other.getPosition().distanceSquared(pos);
+                  if (otherDistance < nearestDistance)
+                  {
+                     nearest = other;
+                     nearestDistance = otherDistance;
+                  }
+               }
+            }
+         }
+
+         if (nearest != null)
+         {
+            long gap = gapOutside(pos, col, row, ring);
+            if (gap == Long.MAX_VALUE || nearestDistance <= gap * gap)
+            {
+               break;
+            }
+         }
+      }
+
+      return Optional.ofNullable(nearest);
+   }
+
+   /*
+      Closest any cell beyond the given ring can be to pos; sides that
+      already reach the edge of the grid have nothing beyond them.
+   */
+   private long gapOutside(Point pos, int col, int row, int ring)
+   {
+      long left = col - ring <= 0 ? Long.MAX_VALUE
+              : pos.x - ((long)(col - ring) * bucketSize - 1);
+      long right = col + ring >= bucketCols - 1 ? Long.MAX_VALUE
+              : (long)(col + ring + 1) * bucketSize - pos.x;
+      long top = row - ring <= 0 ? Long.MAX_VALUE
+              : pos.y - ((long)(row - ring) * bucketSize - 1);
+      long bottom = row + ring >= bucketRows - 1 ? Long.MAX_VALUE
+              : (long)(row + ring + 1) * bucketSize - pos.y;
+      return Math.min(Math.min(left, right), Math.min(top, bottom));
+   }
+
+   private int bucketOf(Point pos)
+   {
+      return (pos.y / bucketSize) * bucketCols + pos.x / bucketSize;
+   }
+
+   private static int indexOf(List<Entity> entities, Entity entity)
+   {
+      for (int i = 0; i < entities.size(); i++)
+      {
+         if (entities.get(i) == entity)
+         {
+            return i;
+         }
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,16 @@
+/*
+SystemClock: real wall-clock time, the default
+ */
+
+final class SystemClock
+   implements Clock
+{
+   public long currentTimeMillis()
+   {
+      return System.currentTimeMillis();
+   }
+
+   public void advanceTo(long time)
+   {
+   }
+}
@@ -0,0 +1,317 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+TimingWheelEventQueue: hierarchical timing wheel backend for EventScheduler
+Eight levels of 256 slots cover the whole long range at millisecond resolution.
+An event is filed in the lowest level whose window still contains its time and
+is cascaded one level down each time the cursor enters its slot, so insert and
+expiry are O(1) amortized.  Slots are FIFO, which keeps ties in the order the
+events were scheduled, matching HeapEventQueue.
+ */
+
+final class TimingWheelEventQueue
+   implements EventQueue
+{
+   private static final int SLOT_BITS = 8;
+   private static final int SLOTS = 1 << SLOT_BITS;
+   private static final int SLOT_MASK = SLOTS - 1;
+   private static final int LEVELS = Long.SIZE / SLOT_BITS;
+   private static final int WORDS = SLOTS / Long.SIZE;
+
+   private ArrayDeque<Event>[][] wheels;
+   private long[][] occupied;
+
+   // events scheduled behind the cursor; rare, so a plain heap is fine
+   private PriorityQueue<Event> overdue;
+
+   // unsigned key of the earliest time that may still hold an event
+   private long cursor;
+   private int size;
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public TimingWheelEventQueue()
+   {
+      this.wheels = new ArrayDeque[LEVELS][SLOTS];
+      this.occupied = new long[LEVELS][WORDS];
+      this.overdue = new PriorityQueue<>(new EventComparator());
+      this.cursor = 0;
+      this.size = 0;
+   }
+
+   public void add(Event event)
+   {
+      long key = keyOf(event.time);
+
+      if (Long.compareUnsigned(key, this.cursor) < 0)
+      {
+         this.overdue.add(event);
+      }
+      else
+      {
+         place(event, key);
+      }
+      this.size++;
+   }
+
+   /*
+      Filing is already O(1) per event, but slots keep ties in the order
+      they were filed, so the batch goes in sequence order.
+   */
+   public void addAll(List<Event> events)
+   {
+      List<Event> ordered = new ArrayList<>(events);
+      ordered.sort(new EventComparator());
+      for (Event event : ordered)
+      {
+         add(event);
+      }
+   }
+
+   public Event peek()
+   {
+      if (this.size == 0)
+      {
+         return null;
+      }
+      if (!this.overdue.isEmpty())
+      {
+         return this.overdue.peek();
+      }
+
+      advance();
+      return this.wheels[0][(int)(this.cursor & SLOT_MASK)].peekFirst();
+   }
+
+   public Event poll()
+   {
+      if (this.size == 0)
+      {
+         return null;
+      }
+      this.size--;
+
+      if (!this.overdue.isEmpty())
+      {
+         return this.overdue.poll();
+      }
+
+      advance();
+      int slot = (int)(this.cursor & SLOT_MASK);
+      ArrayDeque<Event> events = this.wheels[0][slot];
+      Event next = events.pollFirst();
+      if (events.isEmpty())
+      {
+         clearOccupied(0, slot);
+      }
+      return next;
+   }
+
+   public boolean remove(Event event)
+   {
+      if (this.overdue.remove(event))
+      {
+         this.size--;
+         return true;
+      }
+
+      long key = keyOf(event.time);
+      for (int level = 0; level < LEVELS; level++)
+      {
+         int slot = slotIndex(key, level);
+         ArrayDeque<Event> events = this.wheels[level][slot];
+         if (events != null && events.remove(event))
+         {
+            if (events.isEmpty())
+            {
+               clearOccupied(level, slot);
+            }
+            this.size--;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public int removeIf(Predicate<Event> filter)
+   {
+      int before = this.size;
+
+      int dropped = this.overdue.size();
+      this.overdue.removeIf(filter);
+      dropped -= this.overdue.size();
+
+      for (int level = 0; level < LEVELS; level++)
+      {
+         for (int slot = 0; slot < SLOTS; slot++)
+         {
+            ArrayDeque<Event> events = this.wheels[level][slot];
+            if (events != null && !events.isEmpty())
+            {
+               dropped += events.size();
+               events.removeIf(filter);
+               dropped -= events.size();
+               if (events.isEmpty())
+               {
+                  clearOccupied(level, slot);
+               }
+            }
+         }
+      }
+
+      this.size = before - dropped;
+      return dropped;
+   }
+
+   public void forEach(Consumer<Event> action)
+   {
+      this.overdue.forEach(action);
+      for (int level = 0; level < LEVELS; level++)
+      {
+         for (int slot = 0; slot < SLOTS; slot++)
+         {
+            ArrayDeque<Event> events = this.wheels[level][slot];
+            if (events != null)
+            {
+               events.forEach(action);
+            }
+         }
+      }
+   }
+
+   public boolean isEmpty()
+   {
+      return this.size == 0;
+   }
+
+   public int size()
+   {
+      return this.size;
+   }
+
+   /*
+      Moves the cursor forward to the earliest occupied level 0 slot,
+      cascading higher level slots down as their windows are entered.
+      Assumes the wheel (not counting overdue events) is not empty.
+   */
+   private void advance()
+   {
+      while (true)
+      {
+         int next = nextOccupied(0, (int)(this.cursor & SLOT_MASK));
+         if (next >= 0)
+         {
+            this.cursor = (this.cursor & ~(long)SLOT_MASK) | next;
+            return;
+         }
+
+         int level = 1;
+         while (level < LEVELS)
+         {
+            next = nextOccupied(level, slotIndex(this.cursor, level) + 1);
+            if (next >= 0)
+            {
+               break;
+            }
+            level++;
+         }
+
+         if (level == LEVELS)
+         {
+            throw new IllegalStateException("timing wheel lost track of its events");
+         }
+
+         int shift = level * SLOT_BITS;
+         long keep = shift + SLOT_BITS >= Long.SIZE ? 0 : -1L << (shift + SLOT_BITS);
+         this.cursor = (this.cursor & keep) | ((long)next << shift);
+
+         for (int lower = level; lower > 0; lower--)
+         {
+            cascade(lower, slotIndex(this.cursor, lower));
+         }
+      }
+   }
+
+   private void cascade(int level, int slot)
+   {
+      ArrayDeque<Event> events = this.wheels[level][slot];
+      if (events == null || events.isEmpty())
+      {
+         return;
+      }
+
+      clearOccupied(level, slot);
+      while (!events.isEmpty())
+      {
+         Event event = events.pollFirst();
+         place(event, keyOf(event.time));
+      }
+   }
+
+   private void place(Event event, long key)
+   {
+      int level = levelFor(key);
+      int slot = slotIndex(key, level);
+
+      ArrayDeque<Event> events = this.wheels[level][slot];
+      if (events == null)
+      {
+         events = new ArrayDeque<>();
+         this.wheels[level][slot] = events;
+      }
+      events.addLast(event);
+      this.occupied[level][slot >>> 6] |= 1L << slot;
+   }
+
+   private int levelFor(long key)
+   {
+      for (int level = 0; level < LEVELS - 1; level++)
+      {
+         int shift = (level + 1) * SLOT_BITS;
+         if ((key >>> shift) == (this.cursor >>> shift))
+         {
+            return level;
+         }
+      }
+      return LEVELS - 1;
+   }
+
+   private int nextOccupied(int level, int from)
+   {
+      for (int word = from >>> 6; word < WORDS; word++)
+      {
+         long bits = this.occupied[level][word];
+         if (word == from >>> 6)
+         {
+            bits &= -1L << (from & 63);
+         }
+         if (bits != 0)
+         {
+            return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+         }
+      }
+      return -1;
+   }
+
+   private void clearOccupied(int level, int slot)
+   {
+      this.occupied[level][slot >>> 6] &= ~(1L << slot);
+   }
+
+   private static int slotIndex(long key, int level)
+   {
+      return (int)((key >>> (level * SLOT_BITS)) & SLOT_MASK);
+   }
+
+   /*
+      Flipping the sign bit turns signed time order into unsigned key order.
+   */
+   private static long keyOf(long time)
+   {
+      return time ^ Long.MIN_VALUE;
+   }
+}
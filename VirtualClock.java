@@ -0,0 +1,25 @@
+/*
+VirtualClock: simulated time that only moves when the scheduler moves it,
+so a run can go as fast as the events can be processed
+ */
+
+final class VirtualClock
+   implements Clock
+{
+   private long time;
+
+   public VirtualClock(long startTime)
+   {
+      this.time = startTime;
+   }
+
+   public long currentTimeMillis()
+   {
+      return time;
+   }
+
+   public void advanceTo(long time)
+   {
+      this.time = Math.max(this.time, time);
+   }
+}
@@ -1,5 +1,6 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Scanner;
 import processing.core.*;
 
@@ -14,13 +15,39 @@ public final class VirtualWorld
         extends PApplet
 {
    private static final int TIMER_ACTION_PERIOD = 100;
+   private static final long VIRTUAL_FRAME_PERIOD = 60000;
+   private static final int PARALLEL_TILE_SIZE = 8;
+   private static final long FRAME_BUDGET_NANOS = 8000000;
 
    private static final String FAST_FLAG = "-fast";
    private static final String FASTER_FLAG = "-faster";
    private static final String FASTEST_FLAG = "-fastest";
+   private static final String WHEEL_FLAG = "-wheel";
+   private static final String ARRAY_HEAP_FLAG = "-arrayheap";
+   private static final String VIRTUAL_FLAG = "-virtual";
+   private static final String PARALLEL_FLAG = "-parallel";
+   private static final String BUDGET_FLAG = "-budget";
+   private static final String METRICS_FLAG = "-metrics";
+   private static final String CLOCK_ANIMATION_FLAG = "-clockanim";
+   private static final String FIELDS_FLAG = "-fields";
+   private static final String ASTAR_FLAG = "-astar";
+   private static final String CHUNKED_FLAG = "-chunked";
+   private static final String HUGE_FLAG = "-huge";
+   private static final String STORE_FLAG = "-store";
+   private static final String LOCKS_FLAG = "-locks";
+   private static final String SIM_THREAD_FLAG = "-simthread";
+   private static final String CHECKPOINT_FLAG = "-checkpoint";
+   private static final String SHARDS_FLAG = "-shards";
+   private static final String BINARY_FLAG = "-binary";
+   private static final String PARALLEL_LOAD_FLAG = "-parallelload";
+   private static final String JOURNAL_FLAG = "-journal";
+   private static final String RECORD_FLAG = "-record";
+   private static final String REPLAY_FLAG = "-replay";
+   private static final String HEADLESS_FLAG = "-headless";
    private static final double FAST_SCALE = 0.5;
    private static final double FASTER_SCALE = 0.25;
    private static final double FASTEST_SCALE = 0.10;
+   private static final double TIME_SCALE_STEP = 2.0;
 
    private static final int VIEW_WIDTH = 640;
    private static final int VIEW_HEIGHT = 480;
@@ -33,18 +60,61 @@ public final class VirtualWorld
    private static final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
    private static final int WORLD_COLS = VIEW_COLS * WORLD_WIDTH_SCALE;
    private static final int WORLD_ROWS = VIEW_ROWS * WORLD_HEIGHT_SCALE;
+   private static final int HUGE_WORLD_SIZE = 100000;
 
    private static final String IMAGE_LIST_FILE_NAME = "imagelist";
    private static final int DEFAULT_IMAGE_COLOR = 0x808080;
 
    private static final String LOAD_FILE_NAME = "world.sav";
+   private static final String BINARY_LOAD_FILE_NAME = "world.bin";
+   private static final String METRICS_FILE_NAME = "metrics.txt";
+   private static final char METRICS_KEY = 'm';
+   private static final char FASTER_KEY = 'f';
+   private static final char SLOWER_KEY = 's';
+   private static final String CHECKPOINT_FILE_NAME = "checkpoint.sav";
+   private static final long CHECKPOINT_PERIOD_MILLIS = 5000;
+   private static final int SHARD_TICKS = 6000;
+   private static final String JOURNAL_BASE_NAME = "world";
+   private static final long JOURNAL_CHECKPOINT_PERIOD_MILLIS = 60000;
+   private static final String REPLAY_FILE_NAME = "replay.log";
 
    private static double timeScale = 1.0;
+   private static boolean useTimingWheel = false;
+   private static boolean useArrayHeap = false;
+   private static boolean useVirtualTime = false;
+   private static boolean useParallelTicks = false;
+   private static boolean useFrameBudget = false;
+   private static boolean useMetrics = false;
+   private static boolean useClockAnimation = false;
+   private static boolean useDistanceFields = false;
+   private static boolean useAStar = false;
+   private static boolean useChunkedGrid = false;
+   private static boolean useEntityStore = false;
+   private static boolean useRegionLocks = false;
+   private static boolean useSimulationThread = false;
+   private static boolean useCheckpoints = false;
+   private static int shardCount = 0;
+   private static boolean useBinaryWorld = false;
+   private static boolean useParallelLoad = false;
+   private static boolean useJournal = false;
+   private static boolean useRecording = false;
+   private static boolean useReplay = false;
+   private static long headlessMillis = 0;
+   private static int worldRows = WORLD_ROWS;
+   private static int worldCols = WORLD_COLS;
 
    private ImageStore imageStore;
    private WorldModel world;
    private WorldView view;
    private EventScheduler scheduler;
+   private Clock clock;
+   private RenderBuffer renderBuffer;
+   private WorldCheckpointer checkpointer;
+   private long nextCheckpoint;
+   private WorldJournal journal;
+   private long nextJournalCheckpoint;
+   private ReplayLog recorder;
+   private long recordStart;
 
    private long next_time;
 
@@ -59,26 +129,281 @@ public final class VirtualWorld
    public void setup()
    {
       this.imageStore = new ImageStore(createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
-      this.world = new WorldModel(WORLD_ROWS, WORLD_COLS, Background.createDefaultBackground(imageStore));
-      this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world, TILE_WIDTH, TILE_HEIGHT);
-      this.scheduler = new EventScheduler(timeScale);
+      this.world = createWorld(imageStore);
+      configureWorld(world);
+      // a recorded run keeps simulated time, which draw feeds from the wall clock
+      this.clock = useVirtualTime || useRecording ? new VirtualClock(0) : new SystemClock();
+      this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world, TILE_WIDTH, TILE_HEIGHT, clock);
+      this.scheduler = createScheduler(world, timeScale, clock);
 
       imageStore.loadImages(IMAGE_LIST_FILE_NAME, this);
-      loadWorld(world, LOAD_FILE_NAME, imageStore);
+      if (useRecording)
+      {
+         startRecording();
+      }
+      // a journal left by an earlier run puts back the world and its timers
+      int journalGeneration = useJournal
+              ? WorldJournal.restore(JOURNAL_BASE_NAME, world, scheduler, imageStore) : -1;
+      if (journalGeneration < 0)
+      {
+         loadStartingWorld();
+         scheduler.scheduleActions(world, imageStore);
+      }
 
-      scheduler.scheduleActions(world, imageStore);
+      next_time = clock.currentTimeMillis() + TIMER_ACTION_PERIOD;
+
+      if (useCheckpoints)
+      {
+         this.checkpointer = new WorldCheckpointer(imageStore);
+         this.nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_PERIOD_MILLIS;
+      }
+
+      if (useJournal)
+      {
+         this.journal = new WorldJournal(JOURNAL_BASE_NAME, Math.max(journalGeneration, 0));
+         journal.checkpoint(world, scheduler, scheduler.getCompletedTime());
+         world.setJournal(journal);
+         scheduler.setJournal(journal);
+         this.nextJournalCheckpoint = System.currentTimeMillis() + JOURNAL_CHECKPOINT_PERIOD_MILLIS;
+      }
+
+      if (checkpointer != null || journal != null)
+      {
+         Runtime.getRuntime().addShutdownHook(new Thread(this::awaitWrites));
+      }
+
+      if (useSimulationThread)
+      {
+         this.renderBuffer = new RenderBuffer();
+         view.setRenderBuffer(renderBuffer);
+         startSimulationThread();
+      }
+   }
+
+   /*
+      Runs the scheduler on its own thread at its own rate, publishing a
+      render snapshot after each tick; draw then only draws.
+   */
+   private void startSimulationThread()
+   {
+      Thread simulation = new Thread(() -> {
+         while (true)
+         {
+            long time = clock.currentTimeMillis();
+            scheduler.updateOnTime(useVirtualTime ? time + VIRTUAL_FRAME_PERIOD : time);
+            renderBuffer.capture(world, clock.currentTimeMillis());
+            commitJournal();
+            checkpointIfDue();
+            try
+            {
+               Thread.sleep(TIMER_ACTION_PERIOD);
+            }
+            catch (InterruptedException e)
+            {
+               return;
+            }
+         }
+      }, "simulation");
+      simulation.setDaemon(true);
+      simulation.start();
+   }
+
+   /*
+      Seeds Entity.rand and copies the world file into the recording; the
+      world is then loaded from that copy, as a replay will load it.
+   */
+   private void startRecording()
+   {
+      long seed = System.nanoTime();
+      Entity.rand.setSeed(seed);
+      try
+      {
+         this.recorder = ReplayLog.record(REPLAY_FILE_NAME, seed, timeScale,
+                 worldRows, worldCols, LOAD_FILE_NAME);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+      this.recordStart = System.currentTimeMillis();
+      Runtime.getRuntime().addShutdownHook(new Thread(
+              () -> recorder.close(clock.currentTimeMillis())));
+   }
+
+   private void loadStartingWorld()
+   {
+      if (recorder != null)
+      {
+         imageStore.load(new Scanner(recorder.getWorldText()), world);
+      }
+      else
+      {
+         loadWorldFile(world, imageStore);
+      }
+   }
+
+   /*
+      world.sav, or world.bin with -binary, through whichever loader the
+      flags pick.
+   */
+   private static void loadWorldFile(WorldModel world, ImageStore imageStore)
+   {
+      if (useBinaryWorld)
+      {
+         loadBinaryWorld(world, imageStore);
+      }
+      else if (useParallelLoad)
+      {
+         ParallelWorldLoader.load(LOAD_FILE_NAME, world, imageStore);
+      }
+      else
+      {
+         loadWorld(world, LOAD_FILE_NAME, imageStore);
+      }
+   }
 
-      next_time = System.currentTimeMillis() + TIMER_ACTION_PERIOD;
+   /*
+      Between ticks: one group commit for everything the tick changed, and
+      a fresh checkpoint every JOURNAL_CHECKPOINT_PERIOD_MILLIS of wall time
+      so the journal tail stays short.
+   */
+   private void commitJournal()
+   {
+      if (journal == null)
+      {
+         return;
+      }
+      journal.commit(scheduler.getCompletedTime());
+      long now = System.currentTimeMillis();
+      if (now >= nextJournalCheckpoint)
+      {
+         journal.checkpoint(world, scheduler, scheduler.getCompletedTime());
+         nextJournalCheckpoint = now + JOURNAL_CHECKPOINT_PERIOD_MILLIS;
+      }
+   }
+
+   /*
+      At exit: lets a save, journal group or journal checkpoint already
+      being written finish, as the writer threads are daemons and would
+      otherwise die partway through.  Records not yet handed to a group
+      are lost, as they would be in a crash.
+   */
+   private void awaitWrites()
+   {
+      if (checkpointer != null)
+      {
+         checkpointer.await();
+      }
+      if (journal != null)
+      {
+         journal.await();
+      }
+   }
+
+   /*
+      Between ticks, every CHECKPOINT_PERIOD_MILLIS of wall time.
+   */
+   private void checkpointIfDue()
+   {
+      long now = System.currentTimeMillis();
+      if (checkpointer != null && now >= nextCheckpoint)
+      {
+         checkpointer.save(world, CHECKPOINT_FILE_NAME);
+         nextCheckpoint = now + CHECKPOINT_PERIOD_MILLIS;
+      }
+   }
+
+   private static WorldModel createWorld(ImageStore imageStore)
+   {
+      Background defaultBackground = Background.createDefaultBackground(imageStore);
+      if (useEntityStore && useChunkedGrid)
+      {
+         System.err.println("the entity store keeps a dense grid; ignoring -store");
+      }
+      else if (useEntityStore)
+      {
+         return new WorldModel(worldRows, worldCols, defaultBackground, new EntityStore());
+      }
+      if (useChunkedGrid)
+      {
+         return new WorldModel(worldRows, worldCols,
+                 new ChunkedWorldGrid(worldRows, worldCols, defaultBackground));
+      }
+      return new WorldModel(worldRows, worldCols, defaultBackground);
+   }
+
+   private static void configureWorld(WorldModel world)
+   {
+      if (useDistanceFields)
+      {
+         world.enableDistanceFields();
+      }
+      if (useRegionLocks)
+      {
+         world.enableRegionLocks();
+      }
+      if (useAStar)
+      {
+         world.setPathingStrategy(new AStarPathingStrategy(worldRows, worldCols));
+      }
+   }
+
+   private static EventScheduler createScheduler(WorldModel world, double timeScale, Clock clock)
+   {
+      EventScheduler scheduler = new EventScheduler(timeScale, createEventQueue(), clock);
+      if (useParallelTicks)
+      {
+         scheduler.setParallelExecutor(
+                 new ParallelTickExecutor(world, PARALLEL_TILE_SIZE));
+      }
+      if (useFrameBudget)
+      {
+         scheduler.setUpdateBudget(0, FRAME_BUDGET_NANOS);
+      }
+      scheduler.setClockAnimation(useClockAnimation);
+      if (useMetrics)
+      {
+         scheduler.setMetrics(new SchedulerMetrics());
+      }
+      return scheduler;
+   }
+
+   private static EventQueue createEventQueue()
+   {
+      if (useTimingWheel)
+      {
+         return new TimingWheelEventQueue();
+      }
+      if (useArrayHeap)
+      {
+         return new ArrayHeapEventQueue();
+      }
+      return new HeapEventQueue();
    }
 
    public void draw()
    {
-      long time = System.currentTimeMillis();
-      if (time >= next_time)
+      long time = recorder != null && !useVirtualTime
+              ? System.currentTimeMillis() - recordStart : clock.currentTimeMillis();
+      if (useSimulationThread)
+      {
+         view.drawViewport();
+         return;
+      }
+
+      if (useVirtualTime)
+      {
+         // simulated time only moves when we move it, so take a big step
+         scheduler.updateOnTime(time + VIRTUAL_FRAME_PERIOD);
+      }
+      else if (time >= next_time || scheduler.getLagMillis() > 0)
       {
          scheduler.updateOnTime(time);
          next_time = time + TIMER_ACTION_PERIOD;
       }
+      commitJournal();
+      checkpointIfDue();
       view.drawViewport();
    }
 
@@ -105,6 +430,25 @@ public final class VirtualWorld
                break;
          }
          view.shiftView(dx, dy);
+         if (recorder != null)
+         {
+            recorder.recordViewShift(clock.currentTimeMillis(),
+                    view.getViewport().getCol(), view.getViewport().getRow());
+         }
+      }
+      else if (key == FASTER_KEY || key == SLOWER_KEY)
+      {
+         double step = key == FASTER_KEY ? 1 / TIME_SCALE_STEP : TIME_SCALE_STEP;
+         timeScale = Math.max(FASTEST_SCALE, Math.min(1.0, timeScale * step));
+         scheduler.setTimeScale(timeScale);
+         if (recorder != null)
+         {
+            recorder.recordTimeScale(clock.currentTimeMillis(), timeScale);
+         }
+      }
+      else if (key == METRICS_KEY && scheduler.getMetrics() != null)
+      {
+         scheduler.getMetrics().writeSnapshot(METRICS_FILE_NAME, scheduler);
       }
    }
 
@@ -122,6 +466,21 @@ public final class VirtualWorld
       }
    }
 
+   /*
+      Loads world.bin, converting it from world.sav first if there is none
+      yet or world.sav has been edited since.
+   */
+   private static void loadBinaryWorld(WorldModel world, ImageStore imageStore)
+   {
+      File binary = new File(BINARY_LOAD_FILE_NAME);
+      if (!binary.exists() || new File(LOAD_FILE_NAME).lastModified() > binary.lastModified())
+      {
+         BinaryWorldFile.convert(LOAD_FILE_NAME, BINARY_LOAD_FILE_NAME,
+                 worldRows, worldCols, imageStore);
+      }
+      BinaryWorldFile.load(BINARY_LOAD_FILE_NAME, world, imageStore);
+   }
+
    public PImage createImageColored(int width, int height, int color)
    {
       PImage img = new PImage(width, height, RGB);
@@ -136,9 +495,9 @@ public final class VirtualWorld
 
    public static void parseCommandLine(String [] args)
    {
-      for (String arg : args)
+      for (int i = 0; i < args.length; i++)
       {
-         switch (arg)
+         switch (args[i])
          {
             case FAST_FLAG:
                timeScale = Math.min(FAST_SCALE, timeScale);
@@ -149,13 +508,229 @@ public final class VirtualWorld
             case FASTEST_FLAG:
                timeScale = Math.min(FASTEST_SCALE, timeScale);
                break;
+            case WHEEL_FLAG:
+               useTimingWheel = true;
+               break;
+            case ARRAY_HEAP_FLAG:
+               useArrayHeap = true;
+               break;
+            case VIRTUAL_FLAG:
+               useVirtualTime = true;
+               break;
+            case PARALLEL_FLAG:
+               useParallelTicks = true;
+               break;
+            case BUDGET_FLAG:
+               useFrameBudget = true;
+               break;
+            case METRICS_FLAG:
+               useMetrics = true;
+               break;
+            case CLOCK_ANIMATION_FLAG:
+               useClockAnimation = true;
+               break;
+            case FIELDS_FLAG:
+               useDistanceFields = true;
+               break;
+            case ASTAR_FLAG:
+               useAStar = true;
+               break;
+            case CHUNKED_FLAG:
+               useChunkedGrid = true;
+               break;
+            case CHECKPOINT_FLAG:
+               // checkpoints copy chunks, so they need the chunked grid
+               useCheckpoints = true;
+               useChunkedGrid = true;
+               break;
+            case SIM_THREAD_FLAG:
+               useSimulationThread = true;
+               break;
+            case LOCKS_FLAG:
+               useRegionLocks = true;
+               break;
+            case STORE_FLAG:
+               useEntityStore = true;
+               break;
+            case JOURNAL_FLAG:
+               // checkpoints copy chunks, so they need the chunked grid
+               useJournal = true;
+               useChunkedGrid = true;
+               break;
+            case RECORD_FLAG:
+               useRecording = true;
+               break;
+            case REPLAY_FLAG:
+               useReplay = true;
+               break;
+            case PARALLEL_LOAD_FLAG:
+               useParallelLoad = true;
+               break;
+            case BINARY_FLAG:
+               useBinaryWorld = true;
+               break;
+            case HEADLESS_FLAG:
+               // takes the simulated milliseconds to run as the next argument
+               headlessMillis = i + 1 < args.length ? Long.parseLong(args[++i]) : 0;
+               break;
+            case SHARDS_FLAG:
+               // takes the number of shards as the next argument
+               shardCount = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+               break;
+            case HUGE_FLAG:
+               useChunkedGrid = true;
+               worldRows = HUGE_WORLD_SIZE;
+               worldCols = HUGE_WORLD_SIZE;
+               break;
          }
       }
+
+      if (useRecording || useReplay)
+      {
+         keepDeterministic();
+      }
+      keepSearchesInBounds();
+   }
+
+   /*
+      Distance fields and A* keep flat arrays with one entry per cell,
+      which a world of more than Integer.MAX_VALUE cells cannot index.
+   */
+   private static void keepSearchesInBounds()
+   {
+      if ((long)worldRows * worldCols <= Integer.MAX_VALUE)
+      {
+         return;
+      }
+      if (useDistanceFields)
+      {
+         System.err.println("distance fields cannot cover a world this large; ignoring -fields");
+         useDistanceFields = false;
+      }
+      if (useAStar)
+      {
+         System.err.println("A* cannot search a world this large; ignoring -astar");
+         useAStar = false;
+      }
+   }
+
+   /*
+      A recording has to replay event for event, so anything whose outcome
+      depends on wall-clock timing or thread interleaving is left off, and
+      the world always comes from world.sav.
+   */
+   private static void keepDeterministic()
+   {
+      if (useParallelTicks || useFrameBudget || useSimulationThread)
+      {
+         System.err.println("recorded runs are single-threaded and unbudgeted; "
+                 + "ignoring -parallel, -budget and -simthread");
+         useParallelTicks = false;
+         useFrameBudget = false;
+         useSimulationThread = false;
+      }
+      if (useBinaryWorld || useParallelLoad || useJournal)
+      {
+         System.err.println("recorded runs load world.sav as text; "
+                 + "ignoring -binary, -parallelload and -journal");
+         useBinaryWorld = false;
+         useParallelLoad = false;
+         useJournal = false;
+      }
+   }
+
+   /*
+      Runs replay.log again without a window, as fast as it will go, on
+      whichever backends the other flags pick, and reports how long that
+      took and a digest of the world it ended with.
+   */
+   private static void replay()
+   {
+      ReplayLog log;
+      try
+      {
+         log = ReplayLog.open(REPLAY_FILE_NAME);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      worldRows = log.getNumRows();
+      worldCols = log.getNumCols();
+      keepSearchesInBounds();
+      Entity.rand.setSeed(log.getSeed());
+      ImageStore imageStore = new ImageStore(new PImage(TILE_WIDTH, TILE_HEIGHT, RGB));
+      WorldModel world = createWorld(imageStore);
+      configureWorld(world);
+      VirtualClock clock = new VirtualClock(0);
+      EventScheduler scheduler = createScheduler(world, log.getTimeScale(), clock);
+      imageStore.load(new Scanner(log.getWorldText()), world);
+      scheduler.scheduleActions(world, imageStore);
+
+      long start = System.nanoTime();
+      try
+      {
+         log.replay(scheduler, new Viewport(VIEW_ROWS, VIEW_COLS));
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+      System.out.println(String.format("replayed %d simulated ms in %d ms; world %016x",
+              clock.currentTimeMillis(), (System.nanoTime() - start) / 1000000,
+              ReplayLog.fingerprint(world)));
+   }
+
+   /*
+      Runs world.sav without a window on a VirtualClock, jumping from each
+      event straight to the next until headlessMillis of simulated time
+      have passed, and reports how long that took and a digest of the
+      world it ended with.  The flags that pick backends apply; those for
+      the window, recording and saving do not.
+   */
+   private static void runHeadless()
+   {
+      ImageStore imageStore = new ImageStore(new PImage(TILE_WIDTH, TILE_HEIGHT, RGB));
+      WorldModel world = createWorld(imageStore);
+      configureWorld(world);
+      VirtualClock clock = new VirtualClock(0);
+      EventScheduler scheduler = createScheduler(world, timeScale, clock);
+      loadWorldFile(world, imageStore);
+      scheduler.scheduleActions(world, imageStore);
+
+      long start = System.nanoTime();
+      long steps = 0;
+      while (scheduler.advanceToNextEvent(headlessMillis))
+      {
+         steps++;
+      }
+      clock.advanceTo(headlessMillis);
+      System.out.println(String.format("ran %d simulated ms in %d steps and %d ms; world %016x",
+              clock.currentTimeMillis(), steps, (System.nanoTime() - start) / 1000000,
+              ReplayLog.fingerprint(world)));
    }
 
    public static void main(String [] args)
    {
       parseCommandLine(args);
+      if (shardCount > 0)
+      {
+         // headless: each shard is its own process with no window
+         ShardLauncher.launch(shardCount, worldRows, worldCols, SHARD_TICKS);
+         return;
+      }
+      if (useReplay)
+      {
+         replay();
+         return;
+      }
+      if (headlessMillis > 0)
+      {
+         runHeadless();
+         return;
+      }
       PApplet.main(VirtualWorld.class);
    }
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+WorldCheckpointer: saves a running world without pausing it
+
+save freezes the world's grid (O(1), on the calling thread) and hands the
+frozen grid to a background thread that writes it in the world.sav format.
+The file is written beside the target and renamed over it, so a crash mid-save
+leaves the previous save intact.  A save requested while the last one is still
+being written is skipped rather than queued.
+ */
+
+final class WorldCheckpointer
+{
+   private static final String TEMP_SUFFIX = ".tmp";
+
+   private final ImageStore imageStore;
+   private final ExecutorService writer;
+   // read at exit from the shutdown hook's thread
+   private volatile Future<?> pending;
+
+   public WorldCheckpointer(ImageStore imageStore)
+   {
+      this.imageStore = imageStore;
+      this.writer = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "checkpoint");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /*
+      Call between ticks.  Returns false if the previous save is still
+      being written.
+   */
+   public boolean save(WorldModel world, String filename)
+   {
+      if (this.pending != null && !this.pending.isDone())
+      {
+         return false;
+      }
+
+      ChunkedWorldGrid frozen = world.checkpoint();
+      this.pending = this.writer.submit(() -> write(frozen, filename));
+      return true;
+   }
+
+   /*
+      Waits for the save in progress, if any; called at exit.
+   */
+   public void await()
+   {
+      try
+      {
+         if (this.pending != null)
+         {
+            this.pending.get();
+         }
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   private void write(ChunkedWorldGrid frozen, String filename)
+   {
+      File temp = new File(filename + TEMP_SUFFIX);
+      try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(temp))))
+      {
+         frozen.visit(new CellVisitor()
+         {
+            public void visitBackground(int x, int y, Background background)
+            {
+               out.println(imageStore.saveLine(background, x, y));
+            }
+
+            public void visitOccupant(int x, int y, Entity occupant)
+            {
+               // positions come from the frozen cell, as the entity has moved on
+               String line = imageStore.saveLine(occupant, x, y);
+               if (line != null)
+               {
+                  out.println(line);
+               }
+            }
+         });
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      try
+      {
+         Files.move(temp.toPath(), new File(filename).toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,16 @@
+/*
+WorldGrid: the per-cell storage behind WorldModel, a background and at most one
+occupant per cell.  Callers check bounds; cells that were never set hold the
+default background and no occupant.
+ */
+
+interface WorldGrid
+{
+   Background getBackground(int x, int y);
+
+   void setBackground(int x, int y, Background background);
+
+   Entity getOccupant(int x, int y);
+
+   void setOccupant(int x, int y, Entity entity);
+}
@@ -0,0 +1,824 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/*
+WorldJournal: a write-ahead log of world changes between rotating checkpoints
+
+The world and scheduler report every change as it happens (adds, moves,
+removals, backgrounds, resource counts, scheduled and cancelled events).
+Records collect in memory and are written once per tick by commit, as one
+group with one fsync, on the journal's own thread.  While that write is in
+flight further ticks keep adding to the next group instead of waiting.
+Parallel tile tasks buffer their own records, which are appended in tile
+order as each task is merged, so recording takes no lock.
+
+Files, for a base name such as "world":
+   world.ckpt.G      a BinaryWorldFile of the world when generation G began
+   world.events.G    EVENTS_MAGIC, VERSION, count, then the events queued at
+                     that moment: cell, action kind, repeat count, due time
+                     and sequence number
+   world.journal.G   MAGIC, VERSION, G, start time, then groups of
+                     [length][records][commit time][CRC32 of records and time]
+
+checkpoint freezes the world, copies out the event queue, starts journal G+1
+and writes events G+1 and then ckpt G+1 in the background; once that is
+renamed into place the older generations are deleted.  restore loads the
+newest checkpoint and replays every journal from its generation on, stopping
+each at the first torn or corrupt group.
+ */
+
+final class WorldJournal
+{
+   private static final int MAGIC = 0x56574a31;
+   private static final int EVENTS_MAGIC = 0x56574531;
+   private static final int VERSION = 1;
+   private static final String JOURNAL_SUFFIX = ".journal.";
+   private static final String CHECKPOINT_SUFFIX = ".ckpt.";
+   private static final String EVENTS_SUFFIX = ".events.";
+   private static final String TEMP_SUFFIX = ".tmp";
+   private static final int GROUP_TRAILER_BYTES = Long.BYTES + Integer.BYTES;
+
+   private static final byte ADD = 1;
+   private static final byte MOVE = 2;
+   private static final byte REMOVE = 3;
+   private static final byte BACKGROUND = 4;
+   private static final byte RESOURCE = 5;
+   private static final byte SCHEDULE = 6;
+   private static final byte CANCEL = 7;
+
+   private final String baseName;
+   private final ExecutorService writer;
+   private final ExecutorService checkpointWriter;
+   private ByteArrayOutputStream group;
+   private DataOutputStream records;
+   private final ThreadLocal<DataOutputStream> buffered;
+   private final ThreadLocal<ByteArrayOutputStream> bufferedBytes;
+   private FileChannel channel;
+   private int generation;
+   // read at exit from the shutdown hook's thread
+   private volatile Future<?> committed;
+   private volatile Future<?> checkpointed;
+
+   /*
+      generation is the newest one already on disk, or 0 for none; the
+      first checkpoint starts the one after it.
+   */
+   public WorldJournal(String baseName, int generation)
+   {
+      this.baseName = baseName;
+      this.generation = generation;
+      this.group = new ByteArrayOutputStream();
+      this.records = new DataOutputStream(this.group);
+      this.buffered = new ThreadLocal<>();
+      this.bufferedBytes = new ThreadLocal<>();
+      this.writer = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "journal");
+         thread.setDaemon(true);
+         return thread;
+      });
+      this.checkpointWriter = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "journal-checkpoint");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /*
+      Until endBuffer, records made on this thread are kept apart instead
+      of going to the shared group, so parallel tile tasks never contend
+      for it.  endBuffer returns them, for append to add to the group in
+      whatever order the caller needs.
+   */
+   public void beginBuffer()
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      this.bufferedBytes.set(bytes);
+      this.buffered.set(new DataOutputStream(bytes));
+   }
+
+   public byte[] endBuffer()
+   {
+      byte[] records = this.bufferedBytes.get().toByteArray();
+      this.bufferedBytes.remove();
+      this.buffered.remove();
+      return records;
+   }
+
+   public void append(byte[] records)
+   {
+      this.group.write(records, 0, records.length);
+   }
+
+   public void recordAdd(Entity entity)
+   {
+      DataOutputStream out = target();
+      try
+      {
+         out.writeByte(ADD);
+         entity.writeTo(out);
+      }
+      catch (IOException e)
+      {
+         // a ByteArrayOutputStream does not fail
+         throw new IllegalStateException(e);
+      }
+   }
+
+   public void recordMove(Point from, Point to)
+   {
+      DataOutputStream out = target();
+      recordCell(out, MOVE, from);
+      writeInts(out, to.x, to.y);
+   }
+
+   public void recordRemove(Point pos)
+   {
+      recordCell(target(), REMOVE, pos);
+   }
+
+   public void recordBackground(Point pos, Background background)
+   {
+      DataOutputStream out = target();
+      recordCell(out, BACKGROUND, pos);
+      try
+      {
+         out.writeUTF(background.getId());
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   public void recordResourceCount(Entity entity)
+   {
+      DataOutputStream out = target();
+      recordCell(out, RESOURCE, entity.getPosition());
+      writeInts(out, entity.getResourceCount());
+   }
+
+   /*
+      Events are tied to their entity by its cell, so ones for entities
+      already taken out of the world are not recorded.  Neither are endless
+      animations: they reschedule every frame and restore starts them again.
+   */
+   public void recordSchedule(Entity entity, Action action, long time)
+   {
+      if (entity.getPosition().x < 0 || isEndless(action))
+      {
+         return;
+      }
+      DataOutputStream out = target();
+      recordCell(out, SCHEDULE, entity.getPosition());
+      try
+      {
+         out.writeByte(action.getKind().ordinal());
+         out.writeInt(action.getRepeatCount());
+         out.writeLong(time);
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   public void recordCancel(Entity entity)
+   {
+      if (entity.getPosition().x >= 0)
+      {
+         recordCell(target(), CANCEL, entity.getPosition());
+      }
+   }
+
+   private DataOutputStream target()
+   {
+      DataOutputStream out = this.buffered.get();
+      return out != null ? out : this.records;
+   }
+
+   private static boolean isEndless(Action action)
+   {
+      return action.getKind() == ActionKind.ANIMATION && action.getRepeatCount() == 0;
+   }
+
+   private static void recordCell(DataOutputStream out, byte type, Point pos)
+   {
+      try
+      {
+         out.writeByte(type);
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException(e);
+      }
+      writeInts(out, pos.x, pos.y);
+   }
+
+   private static void writeInts(DataOutputStream out, int... values)
+   {
+      try
+      {
+         for (int value : values)
+         {
+            out.writeInt(value);
+         }
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /*
+      Call between ticks with the time the tick ran up to.  Hands this
+      tick's records to the journal thread unless the last group is still
+      being written, in which case they stay for the next commit.  Returns
+      whether a group was started.
+   */
+   public boolean commit(long time)
+   {
+      if (this.committed != null && !this.committed.isDone())
+      {
+         return false;
+      }
+      writeGroup(time);
+      return true;
+   }
+
+   private synchronized void writeGroup(long time)
+   {
+      FileChannel target = this.channel;
+      if (target == null)
+      {
+         // nothing has been checkpointed to start a journal from yet
+         this.group.reset();
+         return;
+      }
+
+      byte[] payload = this.group.toByteArray();
+      this.group.reset();
+      ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payload.length
+              + GROUP_TRAILER_BYTES);
+      frame.putInt(payload.length);
+      frame.put(payload);
+      frame.putLong(time);
+      CRC32 crc = new CRC32();
+      crc.update(frame.array(), Integer.BYTES, payload.length + Long.BYTES);
+      frame.putInt((int)crc.getValue());
+      frame.flip();
+
+      this.committed = this.writer.submit(() -> {
+         while (frame.hasRemaining())
+         {
+            target.write(frame);
+         }
+         target.force(false);
+         return null;
+      });
+   }
+
+   /*
+      Call between ticks.  Freezes the world and copies the pending events,
+      so the checkpoint itself is written in the background, and starts the
+      next journal generation.  Returns false, doing nothing, while the
+      last checkpoint is still being written.
+   */
+   public boolean checkpoint(WorldModel world, EventScheduler scheduler, long time)
+   {
+      if (this.checkpointed != null && !this.checkpointed.isDone())
+      {
+         return false;
+      }
+
+      // everything so far belongs to the old generation, in case this
+      // checkpoint never makes it to disk
+      writeGroup(time);
+      ChunkedWorldGrid frozen = world.checkpoint();
+      byte[] events = captureEvents(scheduler);
+
+      int next = this.generation + 1;
+      FileChannel nextChannel;
+      try
+      {
+         nextChannel = FileChannel.open(new File(journalName(this.baseName, next)).toPath(),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING);
+         ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES + Long.BYTES);
+         header.putInt(MAGIC).putInt(VERSION).putInt(next).putLong(time).flip();
+         while (header.hasRemaining())
+         {
+            nextChannel.write(header);
+         }
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return false;
+      }
+
+      FileChannel previous;
+      synchronized (this)
+      {
+         previous = this.channel;
+         this.channel = nextChannel;
+         this.generation = next;
+      }
+      if (previous != null)
+      {
+         // queued behind the old generation's last group
+         this.writer.submit(() -> {
+            previous.close();
+            return null;
+         });
+      }
+
+      this.checkpointed = this.checkpointWriter.submit(
+              () -> writeCheckpoint(frozen, events, next));
+      return true;
+   }
+
+   /*
+      Events are tied to their entity by its cell, like the journal's, and
+      ones for quakes are left out as checkpoints do not keep quakes.
+   */
+   private static byte[] captureEvents(EventScheduler scheduler)
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      int[] count = {0};
+      try
+      {
+         out.writeInt(EVENTS_MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(0);
+         scheduler.forEachPendingEvent(event -> {
+            Point pos = event.entity.getPosition();
+            if (pos.x < 0 || event.entity.getKind() == EntityKind.QUAKE
+                    || isEndless(event.action))
+            {
+               return;
+            }
+            try
+            {
+               out.writeInt(pos.x);
+               out.writeInt(pos.y);
+               out.writeByte(event.action.getKind().ordinal());
+               out.writeInt(event.action.getRepeatCount());
+               out.writeLong(event.time);
+               out.writeLong(event.sequence);
+            }
+            catch (IOException e)
+            {
+               throw new IllegalStateException(e);
+            }
+            count[0]++;
+         });
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException(e);
+      }
+
+      byte[] events = bytes.toByteArray();
+      ByteBuffer.wrap(events).putInt(2 * Integer.BYTES, count[0]);
+      return events;
+   }
+
+   /*
+      The events file goes first, so a checkpoint on disk always has one.
+   */
+   private void writeCheckpoint(ChunkedWorldGrid frozen, byte[] events, int next)
+   {
+      File eventsTemp = new File(eventsName(this.baseName, next) + TEMP_SUFFIX);
+      File temp = new File(checkpointName(this.baseName, next) + TEMP_SUFFIX);
+      try
+      {
+         Files.write(eventsTemp.toPath(), events);
+         Files.move(eventsTemp.toPath(), new File(eventsName(this.baseName, next)).toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         BinaryWorldFile.save(frozen, temp.getPath());
+         Files.move(temp.toPath(), new File(checkpointName(this.baseName, next)).toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      for (int old : generations(this.baseName, CHECKPOINT_SUFFIX))
+      {
+         if (old < next)
+         {
+            new File(checkpointName(this.baseName, old)).delete();
+         }
+      }
+      for (int old : generations(this.baseName, EVENTS_SUFFIX))
+      {
+         if (old < next)
+         {
+            new File(eventsName(this.baseName, old)).delete();
+         }
+      }
+      for (int old : generations(this.baseName, JOURNAL_SUFFIX))
+      {
+         if (old < next)
+         {
+            new File(journalName(this.baseName, old)).delete();
+         }
+      }
+   }
+
+   /*
+      Waits for the group and checkpoint in progress, if any; called at
+      exit.
+   */
+   public void await()
+   {
+      try
+      {
+         if (this.committed != null)
+         {
+            this.committed.get();
+         }
+         if (this.checkpointed != null)
+         {
+            this.checkpointed.get();
+         }
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+      Rebuilds world from the newest checkpoint and the journal after it,
+      then queues the events that were still pending at the last commit, as
+      long after the scheduler's current time as they were after it, in one
+      batch.  scheduler must have nothing queued.  Returns the newest
+      generation found, or -1 when there is no checkpoint and world is left
+      untouched.
+   */
+   public static int restore(String baseName, WorldModel world, EventScheduler scheduler,
+                             ImageStore imageStore)
+   {
+      List<Integer> checkpoints = generations(baseName, CHECKPOINT_SUFFIX);
+      if (checkpoints.isEmpty())
+      {
+         return -1;
+      }
+      int first = checkpoints.get(checkpoints.size() - 1);
+      BinaryWorldFile.load(checkpointName(baseName, first), world, imageStore);
+
+      Replay replay = new Replay(world, imageStore);
+      replay.loadEvents(eventsName(baseName, first));
+
+      int newest = first;
+      for (int generation : generations(baseName, JOURNAL_SUFFIX))
+      {
+         if (generation >= first)
+         {
+            replay.replayFile(journalName(baseName, generation));
+            newest = generation;
+         }
+      }
+
+      replay.schedule(scheduler);
+      return newest;
+   }
+
+   /*
+      The generations present for one kind of file, oldest first.
+   */
+   private static List<Integer> generations(String baseName, String suffix)
+   {
+      File base = new File(baseName).getAbsoluteFile();
+      String prefix = base.getName() + suffix;
+      List<Integer> found = new ArrayList<>();
+      String[] names = base.getParentFile().list();
+      if (names == null)
+      {
+         return found;
+      }
+      for (String name : names)
+      {
+         if (name.startsWith(prefix))
+         {
+            try
+            {
+               found.add(Integer.parseInt(name.substring(prefix.length())));
+            }
+            catch (NumberFormatException e)
+            {
+               // a temporary file or something else that only looks like ours
+            }
+         }
+      }
+      Collections.sort(found);
+      return found;
+   }
+
+   private static String journalName(String baseName, int generation)
+   {
+      return baseName + JOURNAL_SUFFIX + generation;
+   }
+
+   private static String checkpointName(String baseName, int generation)
+   {
+      return baseName + CHECKPOINT_SUFFIX + generation;
+   }
+
+   private static String eventsName(String baseName, int generation)
+   {
+      return baseName + EVENTS_SUFFIX + generation;
+   }
+
+   /*
+      What restore has rebuilt so far.  Events are kept per entity, so they
+      follow it through moves, as {action kind, repeat count, due time,
+      sequence}.
+   */
+   private static final class Replay
+   {
+      private static final int EVENT_KIND = 0;
+      private static final int EVENT_REPEAT = 1;
+      private static final int EVENT_TIME = 2;
+      private static final int EVENT_SEQUENCE = 3;
+
+      private final WorldModel world;
+      private final ImageStore imageStore;
+      private final Map<String, Background> backgrounds = new HashMap<>();
+      private final Map<Entity, List<long[]>> pending = new IdentityHashMap<>();
+      private long nextSequence;
+      private long lastTime;
+
+      Replay(WorldModel world, ImageStore imageStore)
+      {
+         this.world = world;
+         this.imageStore = imageStore;
+      }
+
+      /*
+         The checkpoint's events, which keep their sequence numbers; the
+         journal's come after all of them.
+      */
+      void loadEvents(String filename)
+      {
+         try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 new FileInputStream(filename))))
+         {
+            if (in.readInt() != EVENTS_MAGIC || in.readInt() != VERSION)
+            {
+               throw new IOException(filename + " is not a world events file");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+               Point pos = new Point(in.readInt(), in.readInt());
+               long kind = in.readByte();
+               long repeatCount = in.readInt();
+               long time = in.readLong();
+               long sequence = in.readLong();
+               addPending(pos, new long[] {kind, repeatCount, time, sequence});
+               this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+            }
+         }
+         catch (EOFException e)
+         {
+            System.err.println(filename + " is truncated");
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+         }
+      }
+
+      private void addPending(Point pos, long[] event)
+      {
+         Entity occupant = this.world.withinBounds(pos) ? this.world.getOccupancyCell(pos) : null;
+         if (occupant != null)
+         {
+            this.pending.computeIfAbsent(occupant, entity -> new ArrayList<>()).add(event);
+         }
+      }
+
+      void replayFile(String filename)
+      {
+         byte[] bytes;
+         try
+         {
+            bytes = Files.readAllBytes(new File(filename).toPath());
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+            return;
+         }
+
+         ByteBuffer file = ByteBuffer.wrap(bytes);
+         if (file.remaining() < 3 * Integer.BYTES + Long.BYTES ||
+                 file.getInt() != MAGIC || file.getInt() != VERSION)
+         {
+            System.err.println(filename + " is not a world journal");
+            return;
+         }
+         file.getInt();
+         this.lastTime = file.getLong();
+
+         CRC32 crc = new CRC32();
+         while (file.remaining() >= Integer.BYTES)
+         {
+            int start = file.position();
+            int length = file.getInt();
+            if (length < 0 || file.remaining() < (long)length + GROUP_TRAILER_BYTES)
+            {
+               // torn by a crash mid-write
+               return;
+            }
+            crc.reset();
+            crc.update(bytes, start + Integer.BYTES, length + Long.BYTES);
+            file.position(start + Integer.BYTES + length);
+            long time = file.getLong();
+            if (file.getInt() != (int)crc.getValue())
+            {
+               System.err.println(String.format("%s is corrupt at byte %d", filename, start));
+               return;
+            }
+
+            try
+            {
+               apply(new DataInputStream(new ByteArrayInputStream(bytes,
+                       start + Integer.BYTES, length)));
+            }
+            catch (IOException e)
+            {
+               System.err.println(String.format("%s has a bad group at byte %d", filename, start));
+               return;
+            }
+            this.lastTime = time;
+         }
+      }
+
+      private void apply(DataInputStream in) throws IOException
+      {
+         while (true)
+         {
+            int type;
+            try
+            {
+               type = in.readByte();
+            }
+            catch (EOFException e)
+            {
+               return;
+            }
+
+            if (type == ADD)
+            {
+               this.world.addEntity(Entity.readFrom(in, this.imageStore));
+               continue;
+            }
+
+            Point pos = new Point(in.readInt(), in.readInt());
+            Entity occupant = this.world.withinBounds(pos)
+                    ? this.world.getOccupancyCell(pos) : null;
+            switch (type)
+            {
+               case MOVE:
+                  this.world.moveOccupant(pos, new Point(in.readInt(), in.readInt()));
+                  break;
+               case REMOVE:
+                  forget(occupant);
+                  this.world.removeEntityAt(pos);
+                  break;
+               case BACKGROUND:
+                  String id = in.readUTF();
+                  this.world.setBackground(pos, this.backgrounds.computeIfAbsent(id,
+                          name -> new Background(name, this.imageStore.getImageList(name))));
+                  break;
+               case RESOURCE:
+                  int count = in.readInt();
+                  if (occupant != null)
+                  {
+                     occupant.setResourceCount(count);
+                  }
+                  break;
+               case SCHEDULE:
+                  long kind = in.readByte();
+                  long repeatCount = in.readInt();
+                  long time = in.readLong();
+                  addPending(pos, new long[] {kind, repeatCount, time, this.nextSequence++});
+                  break;
+               case CANCEL:
+                  forget(occupant);
+                  break;
+               default:
+                  throw new IOException("unknown record " + type);
+            }
+         }
+      }
+
+      private void forget(Entity entity)
+      {
+         if (entity != null)
+         {
+            this.pending.remove(entity);
+         }
+      }
+
+      /*
+         Builds the events still due, kind by kind in registry order, and
+         queues them in one batch, rebased onto the time the scheduler has
+         completed.  Clock-derived animations have no events to restore, so
+         those are started again, as is the activity of anything that acts
+         but lost its event to a torn or skipped group.
+      */
+      void schedule(EventScheduler scheduler)
+      {
+         long now = scheduler.getCompletedTime();
+         List<Event> events = new ArrayList<>();
+         List<Entity> unanimated = new ArrayList<>();
+         List<Entity> inactive = new ArrayList<>();
+         for (EntityKind kind : EntityKind.values())
+         {
+            for (Entity entity : this.world.getEntities(kind))
+            {
+               boolean animated = false;
+               boolean active = false;
+               for (long[] event : this.pending.getOrDefault(entity, Collections.emptyList()))
+               {
+                  // anything due before the last commit has already run
+                  if (event[EVENT_TIME] < this.lastTime)
+                  {
+                     continue;
+                  }
+                  Action action;
+                  if (event[EVENT_KIND] == ActionKind.ACTIVITY.ordinal())
+                  {
+                     action = Action.createActivityAction(entity, this.world, this.imageStore);
+                     active = true;
+                  }
+                  else
+                  {
+                     action = Action.createAnimationAction(entity, (int)event[EVENT_REPEAT]);
+                     animated = true;
+                  }
+                  Event restored = new Event(action, now + event[EVENT_TIME] - this.lastTime, entity);
+                  restored.sequence = event[EVENT_SEQUENCE];
+                  events.add(restored);
+               }
+
+               if (!animated && hasEndlessAnimation(kind))
+               {
+                  unanimated.add(entity);
+               }
+               if (!active && entity.getActionPeriod() > 0)
+               {
+                  inactive.add(entity);
+               }
+            }
+         }
+
+         scheduler.loadEvents(events);
+         for (Entity entity : unanimated)
+         {
+            scheduler.scheduleEndlessAnimation(entity);
+         }
+         for (Entity entity : inactive)
+         {
+            scheduler.scheduleEvent(entity,
+                    Action.createActivityAction(entity, this.world, this.imageStore),
+                    entity.getActionPeriod());
+         }
+      }
+
+      private static boolean hasEndlessAnimation(EntityKind kind)
+      {
+         return kind == EntityKind.OCTO_FULL || kind == EntityKind.OCTO_NOT_FULL
+                 || kind == EntityKind.CRAB;
+      }
+   }
+}
@@ -1,6 +1,10 @@
 import processing.core.PImage;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiPredicate;
 
 /*
 WorldModel ideally keeps track of the actual size of our grid world and what is in that world
@@ -10,27 +14,144 @@ in terms of entities and background elements
 final class WorldModel {
    private int numRows;
    private int numCols;
-   private Background background[][];
-   private Entity occupancy[][];
+   private WorldGrid grid;
+   private OccupancyBits occupiedBits;
+   private RegionLocks regionLocks;
+   private EntityStore store;
    private Set<Entity> entities;
+   private Map<EntityKind, KindRegistry> registries;
+   private Map<EntityKind, SpatialIndex> nearestIndex;
+   private Map<EntityKind, DistanceField> distanceFields;
+   private PathingStrategy pathing;
+   private WorldJournal journal;
+   private BiPredicate<Entity, Entity> remoteEats;
+   private final AtomicLong occupancyVersion;
    private final int FISH_REACH = 1;
+   private static final int NEAREST_BUCKET_SIZE = 8;
+   private static final long NEAREST_MAX_BUCKETS = 1 << 16;
+   private static final long OCCUPANCY_BITS_MAX_CELLS = 1L << 28;
 
    public WorldModel(int numRows, int numCols, Background defaultBackground) {
+      this(numRows, numCols, new DenseWorldGrid(numRows, numCols, defaultBackground));
+   }
+
+   /*
+      Keeps every entity's numbers in store as well, and the occupancy
+      grid as handles into it.
+   */
+   public WorldModel(int numRows, int numCols, Background defaultBackground, EntityStore store) {
+      this(numRows, numCols, new HandleWorldGrid(numRows, numCols, defaultBackground, store));
+      this.store = store;
+   }
+
+   public WorldModel(int numRows, int numCols, WorldGrid grid) {
       this.numRows = numRows;
       this.numCols = numCols;
-      this.background = new Background[numRows][numCols];
-      this.occupancy = new Entity[numRows][numCols];
-      this.entities = new HashSet<>();
+      this.grid = grid;
+      // worlds too big for a flat bitmap probe the grid instead
+      if ((long)numRows * numCols <= OCCUPANCY_BITS_MAX_CELLS) {
+         this.occupiedBits = new OccupancyBits(numRows, numCols);
+      }
+      // concurrent so parallel ticks can add and remove from different tiles
+      this.entities = ConcurrentHashMap.newKeySet();
+      this.registries = new EnumMap<>(EntityKind.class);
+      this.nearestIndex = new EnumMap<>(EntityKind.class);
+      int bucketSize = nearestBucketSize(numRows, numCols);
+      for (EntityKind kind : EntityKind.values()) {
+         this.registries.put(kind, new KindRegistry());
+         this.nearestIndex.put(kind, new SpatialIndex(numRows, numCols, bucketSize));
+      }
+      this.pathing = new GreedyPathingStrategy();
+      this.occupancyVersion = new AtomicLong();
+   }
+
+   /*
+      Buckets grow on very large worlds so each kind's index stays small.
+   */
+   private static int nearestBucketSize(int numRows, int numCols) {
+      long cellsPerBucket = ((long)numRows * numCols + NEAREST_MAX_BUCKETS - 1) / NEAREST_MAX_BUCKETS;
+      return Math.max(NEAREST_BUCKET_SIZE, (int)Math.ceil(Math.sqrt(cellsPerBucket)));
+   }
+
+   /*
+      Makes the world safe to read and mutate from several threads: each
+      mutation write-locks the regions it touches, and getOccupant and
+      getBackgroundImage read optimistically.  Call before sharing the world.
+   */
+   public void enableRegionLocks() {
+      this.regionLocks = new RegionLocks(numCols);
+   }
 
-      for (int row = 0; row < numRows; row++) {
-         Arrays.fill(this.background[row], defaultBackground);
+   /*
+      Switches octos and crabs from greedy steps to shared distance fields
+      towards fish, atlantis and sea grass, which route around obstacles.
+   */
+   public void enableDistanceFields() {
+      this.distanceFields = new EnumMap<>(EntityKind.class);
+      for (EntityKind kind : new EntityKind[] {EntityKind.FISH, EntityKind.ATLANTIS, EntityKind.SGRASS}) {
+         this.distanceFields.put(kind, new DistanceField(this, kind));
       }
    }
 
+   /*
+      Used for movers heading to kinds without a distance field, and for
+      those a field has no step for.
+   */
+   public void setPathingStrategy(PathingStrategy pathing) {
+      this.pathing = pathing;
+   }
+
+   /*
+      Starts recording every change to the world's cells, or stops when
+      given null.
+   */
+   public void setJournal(WorldJournal journal) {
+      this.journal = journal;
+   }
+
+   /*
+      For a shard: given an eater and its target, remoteEats returns true
+      when the target belongs to another shard and has been claimed from
+      its owner instead, in which case the eater gains nothing yet.
+   */
+   public void setRemoteEats(BiPredicate<Entity, Entity> remoteEats) {
+      this.remoteEats = remoteEats;
+   }
+
    public Set<Entity> getEntities() {
       return entities;
    }
 
+   /*
+      The live entities of one kind, without filtering the rest.  Each
+      iteration walks a copy, so tile tasks may add and remove meanwhile.
+   */
+   public Iterable<Entity> getEntities(EntityKind kind) {
+      return this.registries.get(kind);
+   }
+
+   public int countEntities(EntityKind kind) {
+      return this.registries.get(kind).size();
+   }
+
+   /*
+      A frozen copy of every cell, taken in O(1); only chunked worlds can
+      do this.  Call between ticks.
+   */
+   public ChunkedWorldGrid checkpoint() {
+      if (!(this.grid instanceof ChunkedWorldGrid)) {
+         throw new IllegalStateException("checkpoints need a chunked world");
+      }
+      return ((ChunkedWorldGrid)this.grid).checkpoint();
+   }
+
+   /*
+      Null unless the world was created with one.
+   */
+   public EntityStore getEntityStore() {
+      return store;
+   }
+
    public int getNumCols() {
       return numCols;
    }
@@ -40,6 +161,17 @@ final class WorldModel {
    }
 
    public Optional<Point> findOpenAround(Point pos) {
+      if (this.occupiedBits != null) {
+         // same order as the probes below: row by row, left to right
+         for (int dy = -FISH_REACH; dy <= FISH_REACH; dy++) {
+            int x = this.occupiedBits.firstClear(pos.y + dy, pos.x - FISH_REACH, pos.x + FISH_REACH + 1);
+            if (x >= 0) {
+               return Optional.of(new Point(x, pos.y + dy));
+            }
+         }
+         return Optional.empty();
+      }
+
       for (int dy = -FISH_REACH; dy <= FISH_REACH; dy++) {
          for (int dx = -FISH_REACH; dx <= FISH_REACH; dx++) {
             Point newPt = new Point(pos.x + dx, pos.y + dy);
@@ -58,78 +190,173 @@ final class WorldModel {
    }
 
    public boolean isOccupied(Point pos) {
-      return withinBounds(pos) &&
-              getOccupancyCell(pos) != null;
+      if (!withinBounds(pos)) {
+         return false;
+      }
+      if (this.occupiedBits != null) {
+         return this.occupiedBits.get(pos.x, pos.y);
+      }
+      return getOccupancyCell(pos) != null;
    }
 
-   private Optional<Entity> nearestEntity(List<Entity> entities, Point pos) {
-      List<Entity> entitiesList = new ArrayList<Entity>(entities);
-
-      if (entitiesList.isEmpty()) {
-         return Optional.empty();
-      } else {
-         Entity nearest = entitiesList.get(0);
-         int nearestDistance = pos.distanceSquared(nearest.getPosition());
-
-         for (Entity other : entities) {
-            int otherDistance = other.getPosition().distanceSquared(pos);
+   /*
+      Number of empty cells in [left, right) x [top, bottom), clipped to
+      the world.
+   */
+   public int countFreeCells(int left, int top, int right, int bottom) {
+      if (this.occupiedBits != null) {
+         return this.occupiedBits.countClear(left, top, right, bottom);
+      }
 
-            if (otherDistance < nearestDistance) {
-               nearest = other;
-               nearestDistance = otherDistance;
+      int free = 0;
+      for (int y = Math.max(top, 0); y < Math.min(bottom, this.numRows); y++) {
+         for (int x = Math.max(left, 0); x < Math.min(right, this.numCols); x++) {
+            if (getOccupancyCell(x, y) == null) {
+               free++;
             }
          }
-         return Optional.of(nearest);
       }
+      return free;
    }
 
-
    public Optional<PImage> getBackgroundImage(Point pos) {
-      if (withinBounds(pos)) {
-         return Optional.of(getBackgroundCell(pos).getCurrentImage());
-      } else {
+      if (!withinBounds(pos)) {
          return Optional.empty();
       }
+      if (this.regionLocks == null) {
+         return Optional.of(getBackgroundCell(pos).getCurrentImage());
+      }
+
+      StampedLock lock = this.regionLocks.get(this.regionLocks.stripeOf(pos));
+      long stamp = lock.tryOptimisticRead();
+      Background background = getBackgroundCell(pos);
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();
+         try {
+            background = getBackgroundCell(pos);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      return Optional.of(background.getCurrentImage());
    }
 
    public void setBackground(Point pos, Background background) {
       if (withinBounds(pos)) {
-         setBackgroundCell(pos, background);
+         long stamp = lockRegion(pos);
+         try {
+            setBackgroundCell(pos, background);
+            if (this.journal != null) {
+               this.journal.recordBackground(pos, background);
+            }
+         } finally {
+            unlockRegion(pos, stamp);
+         }
       }
    }
 
    public Optional<Entity> getOccupant(Point pos) {
-      if (isOccupied(pos)) {
-         return Optional.of(getOccupancyCell(pos));
-      } else {
-         return Optional.empty();
+      if (this.regionLocks == null || !withinBounds(pos)) {
+         if (isOccupied(pos)) {
+            return Optional.of(getOccupancyCell(pos));
+         } else {
+            return Optional.empty();
+         }
+      }
+
+      StampedLock lock = this.regionLocks.get(this.regionLocks.stripeOf(pos));
+      long stamp = lock.tryOptimisticRead();
+      Entity occupant = getOccupancyCell(pos);
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();
+         try {
+            occupant = getOccupancyCell(pos);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      return Optional.ofNullable(occupant);
+   }
+
+   private long lockRegion(Point pos) {
+      return this.regionLocks == null ? 0
+              : this.regionLocks.get(this.regionLocks.stripeOf(pos)).writeLock();
+   }
+
+   private void unlockRegion(Point pos, long stamp) {
+      if (this.regionLocks != null) {
+         this.regionLocks.get(this.regionLocks.stripeOf(pos)).unlockWrite(stamp);
       }
    }
 
    private Background getBackgroundCell(Point pos) {
-      return this.background[pos.y][pos.x];
+      return this.grid.getBackground(pos.x, pos.y);
    }
 
    private void setBackgroundCell(Point pos, Background background) {
-      this.background[pos.y][pos.x] = background;
+      this.grid.setBackground(pos.x, pos.y, background);
    }
 
    public Entity getOccupancyCell(Point pos) {
-      return this.occupancy[pos.y][pos.x];
+      return this.grid.getOccupant(pos.x, pos.y);
+   }
+
+   public Entity getOccupancyCell(int x, int y) {
+      return this.grid.getOccupant(x, y);
    }
 
    public void setOccupancyCell(Point pos, Entity entity) {
-      this.occupancy[pos.y][pos.x] = entity;
+      this.grid.setOccupant(pos.x, pos.y, entity);
+      if (this.occupiedBits != null) {
+         this.occupiedBits.set(pos.x, pos.y, entity != null);
+      }
+      this.occupancyVersion.incrementAndGet();
+   }
+
+   /*
+      Changes whenever any cell's occupant does.
+   */
+   public long getOccupancyVersion() {
+      return this.occupancyVersion.get();
    }
 
    public Optional<Entity> findNearest(Point pos, EntityKind kind) {
-      List<Entity> ofType = new LinkedList<>();
-      for (Entity entity : this.entities) {
-         if (entity.getKind() == kind) {
-            ofType.add(entity);
+      DistanceField field = distanceField(kind);
+      if (field != null) {
+         Optional<Point> reached = field.nearestTarget(pos);
+         if (reached.isPresent()) {
+            return getOccupant(reached.get());
+         }
+      }
+      return this.nearestIndex.get(kind).findNearest(pos);
+   }
+
+   private DistanceField distanceField(EntityKind kind) {
+      return this.distanceFields == null ? null : this.distanceFields.get(kind);
+   }
+
+   private void cellChanged(Point pos) {
+      if (this.distanceFields != null) {
+         for (DistanceField field : this.distanceFields.values()) {
+            field.cellChanged(pos);
+         }
+      }
+   }
+
+   /*
+      Next cell for a mover heading to target: down the target kind's
+      distance field when it has a step to offer, otherwise the pathing
+      strategy's.
+   */
+   private Point nextPosition(Entity mover, Entity target) {
+      DistanceField field = distanceField(target.getKind());
+      if (field != null) {
+         Optional<Point> step = field.nextStep(mover.getPosition());
+         if (step.isPresent()) {
+            return step.get();
          }
       }
-      return nearestEntity(ofType, pos);
+      return this.pathing.nextPosition(this, mover, target.getPosition());
    }
 
    /*
@@ -138,18 +365,111 @@ final class WorldModel {
    */
    public void addEntity(Entity entity) {
       if (withinBounds(entity.getPosition())) {
+         long stamp = lockRegion(entity.getPosition());
+         try {
+            placeEntity(entity);
+         } finally {
+            unlockRegion(entity.getPosition(), stamp);
+         }
+      }
+   }
+
+   private void placeEntity(Entity entity) {
+      if (withinBounds(entity.getPosition())) {
+         if (this.store != null) {
+            this.store.add(entity);
+         }
          setOccupancyCell(entity.getPosition(), entity);
          this.entities.add(entity);
+         this.registries.get(entity.getKind()).add(entity);
+         this.nearestIndex.get(entity.getKind()).add(entity, entity.getPosition());
+         cellChanged(entity.getPosition());
+         if (this.journal != null) {
+            this.journal.recordAdd(entity);
+         }
       }
    }
 
+   /*
+      Callers hold the locks for both cells.
+   */
    private void moveEntity(Entity entity, Point pos) {
       Point oldPos = entity.getPosition();
       if (withinBounds(pos) && !pos.equals(oldPos)) {
          setOccupancyCell(oldPos, null);
-         entity.removeEntityAt(this, pos);
+         clearCell(pos);
          setOccupancyCell(pos, entity);
          entity.setPosition(pos);
+         this.nearestIndex.get(entity.getKind()).move(entity, oldPos, pos);
+         cellChanged(oldPos);
+         cellChanged(pos);
+         if (this.journal != null) {
+            this.journal.recordMove(oldPos, pos);
+         }
+      }
+   }
+
+   /*
+      Moves whatever is at from to pos, evicting any occupant, as a journal
+      replay does; movers go through the moveTo methods instead.
+   */
+   public void moveOccupant(Point from, Point pos) {
+      Entity entity = withinBounds(from) ? getOccupancyCell(from) : null;
+      if (entity == null) {
+         return;
+      }
+      if (this.regionLocks == null) {
+         moveEntity(entity, pos);
+         return;
+      }
+
+      int fromStripe = this.regionLocks.stripeOf(from);
+      int toStripe = this.regionLocks.stripeOf(pos);
+      StampedLock low = this.regionLocks.get(Math.min(fromStripe, toStripe));
+      StampedLock high = fromStripe == toStripe ? null
+              : this.regionLocks.get(Math.max(fromStripe, toStripe));
+      long lowStamp = low.writeLock();
+      long highStamp = high == null ? 0 : high.writeLock();
+      try {
+         moveEntity(entity, pos);
+      } finally {
+         if (high != null) {
+            high.unlockWrite(highStamp);
+         }
+         low.unlockWrite(lowStamp);
+      }
+   }
+
+   public void removeEntityAt(Point pos) {
+      if (withinBounds(pos)) {
+         long stamp = lockRegion(pos);
+         try {
+            clearCell(pos);
+         } finally {
+            unlockRegion(pos, stamp);
+         }
+      }
+   }
+
+   private void clearCell(Point pos) {
+      if (withinBounds(pos) && getOccupancyCell(pos) != null) {
+         Entity entity = getOccupancyCell(pos);
+
+         this.nearestIndex.get(entity.getKind()).remove(entity, pos);
+
+         /* this moves the entity just outside of the grid for
+            debugging purposes */
+         entity.setPosition(new Point(-1, -1));
+         this.entities.remove(entity);
+         this.registries.get(entity.getKind()).remove(entity);
+         setOccupancyCell(pos, null);
+         if (this.store != null) {
+            this.store.remove(entity.getStoreHandle());
+         }
+         cellChanged(pos);
+         if (this.journal != null) {
+            this.journal.recordRemove(pos);
+         }
       }
    }
 
@@ -157,15 +477,10 @@ final class WorldModel {
       if (octo.getPosition().adjacent(target.getPosition())) {
          return true;
       } else {
-         Point nextPos = octo.nextPositionOcto(this, target.getPosition());
+         Point nextPos = nextPosition(octo, target);
 
          if (!octo.getPosition().equals(nextPos)) {
-            Optional<Entity> occupant = getOccupant(nextPos);
-            if (occupant.isPresent()) {
-               scheduler.unscheduleAllEvents(occupant.get());
-            }
-
-            moveEntity(octo, nextPos);
+            stepTo(octo, nextPos, scheduler);
          }
          return false;
       }
@@ -173,21 +488,20 @@ final class WorldModel {
 
    public boolean moveToNotFull(Entity octo, Entity target, EventScheduler scheduler) {
       if (octo.getPosition().adjacent(target.getPosition())) {
+         if (eatenRemotely(octo, target) || !eat(octo, target, scheduler)) {
+            return false;
+         }
          octo.setResourceCount(octo.getResourceCount() + 1);
-         target.removeEntity(this, target);
-         scheduler.unscheduleAllEvents(target);
+         if (this.journal != null) {
+            this.journal.recordResourceCount(octo);
+         }
 
          return true;
       } else {
-         Point nextPos = octo.nextPositionOcto(this, target.getPosition());
+         Point nextPos = nextPosition(octo, target);
 
          if (!octo.getPosition().equals(nextPos)) {
-            Optional<Entity> occupant = getOccupant(nextPos);
-            if (occupant.isPresent()) {
-               scheduler.unscheduleAllEvents(occupant.get());
-            }
-
-            moveEntity(octo, nextPos);
+            stepTo(octo, nextPos, scheduler);
          }
          return false;
       }
@@ -195,31 +509,118 @@ final class WorldModel {
 
    public boolean moveToCrab(Entity crab, Entity target, EventScheduler scheduler) {
       if (crab.getPosition().adjacent(target.getPosition())) {
-         target.removeEntity(this, target);
-         scheduler.unscheduleAllEvents(target);
-         return true;
+         return !eatenRemotely(crab, target) && eat(crab, target, scheduler);
       } else {
-         Point nextPos = crab.nextPositionCrab(this, target.getPosition());
+         Point nextPos = nextPosition(crab, target);
 
          if (!crab.getPosition().equals(nextPos)) {
-            Optional<Entity> occupant = getOccupant(nextPos);
-            if (occupant.isPresent()) {
-               scheduler.unscheduleAllEvents(occupant.get());
-            }
-
-            moveEntity(crab, nextPos);
+            stepTo(crab, nextPos, scheduler);
          }
          return false;
       }
    }
 
+   /*
+      Removes target from the grid and cancels its events.  With region
+      locks both cells are locked first, and the eat fails if another
+      thread moved either entity or ate the target in the meantime.
+   */
+   private boolean eat(Entity eater, Entity target, EventScheduler scheduler) {
+      Point at = target.getPosition();
+      if (this.regionLocks == null) {
+         clearCell(at);
+         scheduler.unscheduleAllEvents(target);
+         return true;
+      }
+
+      Point from = eater.getPosition();
+      int fromStripe = this.regionLocks.stripeOf(from);
+      int atStripe = this.regionLocks.stripeOf(at);
+      StampedLock low = this.regionLocks.get(Math.min(fromStripe, atStripe));
+      StampedLock high = fromStripe == atStripe ? null
+              : this.regionLocks.get(Math.max(fromStripe, atStripe));
+      long lowStamp = low.writeLock();
+      long highStamp = high == null ? 0 : high.writeLock();
+      try {
+         if (!eater.getPosition().equals(from) || !withinBounds(at)
+                 || getOccupancyCell(at) != target) {
+            return false;
+         }
+         clearCell(at);
+         scheduler.unscheduleAllEvents(target);
+         return true;
+      } finally {
+         if (high != null) {
+            high.unlockWrite(highStamp);
+         }
+         low.unlockWrite(lowStamp);
+      }
+   }
+
+   private boolean eatenRemotely(Entity eater, Entity target) {
+      return this.remoteEats != null && this.remoteEats.test(eater, target);
+   }
+
+   /*
+      Moves mover one cell, evicting whatever it steps onto.  With region
+      locks both cells are locked first, and the move is skipped if another
+      thread changed either of them after nextPos was chosen.
+   */
+   private void stepTo(Entity mover, Point nextPos, EventScheduler scheduler) {
+      if (this.regionLocks == null) {
+         evictAndMove(mover, nextPos, scheduler);
+         return;
+      }
+
+      Point from = mover.getPosition();
+      int fromStripe = this.regionLocks.stripeOf(from);
+      int toStripe = this.regionLocks.stripeOf(nextPos);
+      StampedLock low = this.regionLocks.get(Math.min(fromStripe, toStripe));
+      StampedLock high = fromStripe == toStripe ? null
+              : this.regionLocks.get(Math.max(fromStripe, toStripe));
+      long lowStamp = low.writeLock();
+      long highStamp = high == null ? 0 : high.writeLock();
+      try {
+         if (mover.getPosition().equals(from) && withinBounds(nextPos)
+                 && canStepOnto(mover, getOccupancyCell(nextPos))) {
+            evictAndMove(mover, nextPos, scheduler);
+         }
+      } finally {
+         if (high != null) {
+            high.unlockWrite(highStamp);
+         }
+         low.unlockWrite(lowStamp);
+      }
+   }
+
+   private void evictAndMove(Entity mover, Point nextPos, EventScheduler scheduler) {
+      Entity occupant = withinBounds(nextPos) ? getOccupancyCell(nextPos) : null;
+      if (occupant != null) {
+         scheduler.unscheduleAllEvents(occupant);
+      }
+
+      moveEntity(mover, nextPos);
+   }
+
+   private static boolean canStepOnto(Entity mover, Entity occupant) {
+      return occupant == null ||
+              (mover.getKind() == EntityKind.CRAB && occupant.getKind() == EntityKind.FISH);
+   }
+
    public void tryAddEntity(Entity entity) {
-      if (isOccupied(entity.getPosition())) {
-         // arguably the wrong type of exception, but we are not
-         // defining our own exceptions yet
-         throw new IllegalArgumentException("position occupied");
+      long stamp = withinBounds(entity.getPosition()) ? lockRegion(entity.getPosition()) : 0;
+      try {
+         if (isOccupied(entity.getPosition())) {
+            // arguably the wrong type of exception, but we are not
+            // defining our own exceptions yet
+            throw new IllegalArgumentException("position occupied");
+         }
+         placeEntity(entity);
+      } finally {
+         if (withinBounds(entity.getPosition())) {
+            unlockRegion(entity.getPosition(), stamp);
+         }
       }
-      addEntity(entity);
    }
 
 
@@ -15,23 +15,80 @@ final class WorldView
    private int tileWidth;
    private int tileHeight;
    private Viewport viewport;
+   private Clock clock;
+   private int[] visible;
+   private RenderBuffer renderBuffer;
 
    public WorldView(int numRows, int numCols, PApplet screen, WorldModel world,
-      int tileWidth, int tileHeight)
+      int tileWidth, int tileHeight, Clock clock)
    {
       this.screen = screen;
+      this.clock = clock;
       this.world = world;
       this.tileWidth = tileWidth;
       this.tileHeight = tileHeight;
       this.viewport = new Viewport(numRows, numCols);
+      this.visible = new int[numRows * numCols];
    }
+   /*
+      Draws entities from the snapshots the simulation publishes instead
+      of reading the live world, so the simulation can run on its own
+      thread.
+   */
+   public void setRenderBuffer(RenderBuffer renderBuffer)
+   {
+      this.renderBuffer = renderBuffer;
+      shareRegion();
+   }
+
    public void drawViewport()
    {
       drawBackground();
-      drawEntities();
+      if (this.renderBuffer != null)
+      {
+         drawSnapshot(this.renderBuffer.front());
+      }
+      else
+      {
+         drawEntities();
+      }
+   }
+
+   /*
+      The snapshot may predate a shiftView, so anything now off screen is
+      skipped.
+   */
+   private void drawSnapshot(RenderSnapshot snapshot)
+   {
+      for (int i = 0; i < snapshot.getCount(); i++)
+      {
+         int col = snapshot.getX(i) - viewport.getCol();
+         int row = snapshot.getY(i) - viewport.getRow();
+         if (col >= 0 && col < viewport.getNumCols() && row >= 0 && row < viewport.getNumRows())
+         {
+            screen.image(snapshot.getImage(i), col * tileWidth, row * tileHeight);
+         }
+      }
+   }
+
+   private void shareRegion()
+   {
+      if (this.renderBuffer != null)
+      {
+         this.renderBuffer.setRegion(viewport.getCol(), viewport.getRow(),
+                 viewport.getNumCols(), viewport.getNumRows());
+      }
    }
    private void drawEntities()
    {
+      long time = clock.currentTimeMillis();
+      EntityStore store = world.getEntityStore();
+      if (store != null)
+      {
+         drawStoredEntities(store, time);
+         return;
+      }
+
       for (Entity entity : world.getEntities())
       {
          Point pos = entity.getPosition();
@@ -39,12 +96,34 @@ final class WorldView
          if (this.viewport.contains(pos))
          {
             Point viewPoint = viewport.worldToViewport(pos.x, pos.y);
-            screen.image(entity.getCurrentImage(),
+            screen.image(entity.getCurrentImage(time),
                     viewPoint.x * tileWidth, viewPoint.y * tileHeight);
          }
       }
    }
 
+   /*
+      Finds what is on screen by scanning the store's position columns,
+      touching an Entity only to fetch its image.
+   */
+   private void drawStoredEntities(EntityStore store, long time)
+   {
+      int count = store.findInRect(viewport.getCol(), viewport.getRow(),
+              viewport.getCol() + viewport.getNumCols(),
+              viewport.getRow() + viewport.getNumRows(), visible);
+      for (int i = 0; i < count; i++)
+      {
+         int handle = visible[i];
+         Entity entity = store.getEntity(handle);
+         if (entity != null)
+         {
+            int col = store.get(handle, EntityStore.X) - viewport.getCol();
+            int row = store.get(handle, EntityStore.Y) - viewport.getRow();
+            screen.image(entity.getCurrentImage(time), col * tileWidth, row * tileHeight);
+         }
+      }
+   }
+
    private void drawBackground()
    {
       for (int row = 0; row < this.viewport.getNumRows(); row++)
@@ -62,6 +141,11 @@ final class WorldView
          }
       }
    }
+   public Viewport getViewport()
+   {
+      return viewport;
+   }
+
    public void shiftView(int colDelta, int rowDelta)
    {
       int newCol = clamp(this.viewport.getCol() + colDelta, 0,
@@ -70,6 +154,7 @@ final class WorldView
               this.world.getNumRows() - this.viewport.getNumRows());
 
       this.viewport.shift(newCol, newRow);
+      shareRegion();
    }
    private static int clamp(int value, int low, int high)
    {